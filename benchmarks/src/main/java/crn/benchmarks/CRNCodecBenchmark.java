@@ -0,0 +1,85 @@
+package crn.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding requests into a buffer and parsing the responses, the way the node does
+// for every message it sends and receives.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CRNCodecBenchmark {
+
+    // Length of the value, which is made of words so it has spaces to count
+    @Param({"16", "1024"})
+    public int valueLength;
+
+    private Object writer;
+    private Object reader;
+    private ByteBuffer out;
+    private ByteBuffer response;
+    private String key;
+    private String value;
+
+    @Setup
+    public void setUp() throws Throwable {
+        writer = (Object) Core.NEW_WRITER.invokeExact();
+        reader = (Object) Core.NEW_READER.invokeExact();
+        out = ByteBuffer.allocateDirect(64 * 1024);
+        key = "D:jabberwocky verse 4";
+        StringBuilder words = new StringBuilder();
+        while (words.length() < valueLength) {
+            words.append("vorpal ");
+        }
+        value = words.substring(0, valueLength);
+
+        byte[] encoded = ("ab S Y " + value.chars().filter(c -> c == ' ').count() + " " + value + " ")
+                .getBytes(StandardCharsets.UTF_8);
+        response = ByteBuffer.allocateDirect(encoded.length);
+        response.put(encoded).flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeReadRequest() throws Throwable {
+        Object w = (Object) Core.WRITER_RESET.invokeExact(writer, (Object) out);
+        w = (Object) Core.WRITER_HEADER.invokeExact(w, 0x6162, 'R');
+        w = (Object) Core.WRITER_STRING.invokeExact(w, (Object) key);
+        return (ByteBuffer) (Object) Core.WRITER_FINISH.invokeExact(w);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeWriteRequest() throws Throwable {
+        Object w = (Object) Core.WRITER_RESET.invokeExact(writer, (Object) out);
+        w = (Object) Core.WRITER_HEADER.invokeExact(w, 0x6162, 'W');
+        w = (Object) Core.WRITER_STRING.invokeExact(w, (Object) key);
+        w = (Object) Core.WRITER_STRING.invokeExact(w, (Object) value);
+        return (ByteBuffer) (Object) Core.WRITER_FINISH.invokeExact(w);
+    }
+
+    @Benchmark
+    public String parseReadResponse() throws Throwable {
+        Object r = (Object) Core.READER_RESET.invokeExact(reader, (Object) response.duplicate());
+        int txid = (int) Core.READER_TRANSACTION_ID.invokeExact(r);
+        char opcode = (char) Core.READER_OPCODE.invokeExact(r);
+        char found = (char) Core.READER_NEXT_CHAR.invokeExact(r);
+        if (txid < 0 || opcode != 'S' || found != 'Y') {
+            throw new IllegalStateException("Response didn't parse");
+        }
+        return (String) (Object) Core.READER_NEXT_STRING.invokeExact(r);
+    }
+}
@@ -0,0 +1,109 @@
+package crn.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+// The node's classes are in the default package, which can't be imported, and JMH
+// won't generate code for benchmarks in the default package either.  So the
+// benchmarks call them through method handles.  Held in static finals these are
+// constants to the JIT and are inlined like direct calls.
+//
+// Every handle has its reference types erased to Object, so calls look like
+//     byte[] id = (byte[]) (Object) Core.COMPUTE_HASH_ID.invokeExact((Object) key);
+final class Core {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Class<?> HASH_ID = type("HashID");
+    private static final Class<?> CRN_WRITER = type("CRNWriter");
+    private static final Class<?> CRN_READER = type("CRNReader");
+    private static final Class<?> COMPACT_STORE = type("CompactStore");
+    private static final Class<?> NODE = type("Node");
+
+    static final int LOCAL = 1;
+
+    // HashID
+    static final MethodHandle COMPUTE_HASH_ID = findStatic(HASH_ID, "computeHashID", byte[].class, String.class);
+    static final MethodHandle DISTANCE_BYTES = findStatic(HASH_ID, "distance", int.class, byte[].class, byte[].class);
+    static final MethodHandle HASH_ID_OF = findStatic(HASH_ID, "of", HASH_ID, String.class);
+    static final MethodHandle DISTANCE = findVirtual(HASH_ID, "distance", int.class, HASH_ID);
+
+    // Encoding and parsing messages
+    static final MethodHandle NEW_WRITER = constructor(CRN_WRITER);
+    static final MethodHandle WRITER_RESET = findVirtual(CRN_WRITER, "reset", CRN_WRITER, ByteBuffer.class);
+    static final MethodHandle WRITER_HEADER = findVirtual(CRN_WRITER, "header", CRN_WRITER, int.class, char.class);
+    static final MethodHandle WRITER_CHARACTER = findVirtual(CRN_WRITER, "character", CRN_WRITER, char.class);
+    static final MethodHandle WRITER_STRING = findVirtual(CRN_WRITER, "string", CRN_WRITER, CharSequence.class);
+    static final MethodHandle WRITER_FINISH = findVirtual(CRN_WRITER, "finish", ByteBuffer.class);
+    static final MethodHandle NEW_READER = constructor(CRN_READER);
+    static final MethodHandle READER_RESET = findVirtual(CRN_READER, "reset", CRN_READER, ByteBuffer.class);
+    static final MethodHandle READER_TRANSACTION_ID = findVirtual(CRN_READER, "transactionID", int.class);
+    static final MethodHandle READER_OPCODE = findVirtual(CRN_READER, "opcode", char.class);
+    static final MethodHandle READER_NEXT_CHAR = findVirtual(CRN_READER, "nextChar", char.class);
+    static final MethodHandle READER_NEXT_STRING = findVirtual(CRN_READER, "nextStringValue", String.class);
+
+    // The in-memory store
+    static final MethodHandle NEW_STORE = constructor(COMPACT_STORE);
+    static final MethodHandle STORE_GET = findVirtual(COMPACT_STORE, "get", String.class, String.class);
+    static final MethodHandle STORE_PUT = findVirtual(COMPACT_STORE, "put", String.class, String.class, String.class, int.class);
+    static final MethodHandle STORE_REPLACE = findVirtual(COMPACT_STORE, "replace", boolean.class,
+            String.class, String.class, String.class, int.class);
+
+    // Nodes
+    static final MethodHandle NEW_NODE = constructor(NODE);
+    static final MethodHandle SET_NODE_NAME = findVirtual(NODE, "setNodeName", void.class, String.class);
+    static final MethodHandle OPEN_PORT = findVirtual(NODE, "openPort", void.class, int.class);
+    static final MethodHandle SET_LIVENESS_INTERVAL = findVirtual(NODE, "setLivenessInterval", void.class, long.class);
+    static final MethodHandle LEARN_ADDRESS = findVirtual(NODE, "learnAddress", type("NodeAddress"), String.class, String.class);
+    static final MethodHandle READ = findVirtual(NODE, "read", String.class, String.class);
+    static final MethodHandle WRITE = findVirtual(NODE, "write", boolean.class, String.class, String.class);
+    static final MethodHandle EXISTS = findVirtual(NODE, "exists", boolean.class, String.class);
+    static final MethodHandle CAS = findVirtual(NODE, "CAS", boolean.class, String.class, String.class, String.class);
+    static final MethodHandle SHUTDOWN = findVirtual(NODE, "shutdown", void.class);
+
+    private Core() {
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The crn classes aren't on the class path", e);
+        }
+    }
+
+    private static MethodHandles.Lookup in(Class<?> type) throws IllegalAccessException {
+        // Most of the classes are package-private; both sides are in the unnamed module
+        return MethodHandles.privateLookupIn(type, LOOKUP);
+    }
+
+    private static MethodHandle findStatic(Class<?> type, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            return erase(in(type).findStatic(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(type.getName() + "." + name + " isn't there", e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> type, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            return erase(in(type).findVirtual(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(type.getName() + "." + name + " isn't there", e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type) {
+        try {
+            return erase(in(type).findConstructor(type, MethodType.methodType(void.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(type.getName() + " can't be constructed", e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        return handle.asType(handle.type().erase());
+    }
+}
@@ -0,0 +1,67 @@
+package crn.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Working out hashIDs and the distance between them, which every request does.
+// HashID caches recent results, so keys are hashed both from a set small enough
+// to stay cached and from one that is too large to.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashIDBenchmark {
+
+    private static final int CACHED_KEYS = 64;
+    private static final int UNCACHED_KEYS = 1 << 16;
+
+    private String[] keys;
+    private int next;
+    private byte[] a;
+    private byte[] b;
+    private Object hashA;
+    private Object hashB;
+
+    @Setup
+    public void setUp() throws Throwable {
+        keys = new String[UNCACHED_KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "D:benchmark key " + i;
+        }
+        a = (byte[]) (Object) Core.COMPUTE_HASH_ID.invokeExact((Object) "N:alice");
+        b = (byte[]) (Object) Core.COMPUTE_HASH_ID.invokeExact((Object) "N:bob");
+        hashA = (Object) Core.HASH_ID_OF.invokeExact((Object) "N:alice");
+        hashB = (Object) Core.HASH_ID_OF.invokeExact((Object) "N:bob");
+    }
+
+    @Benchmark
+    public byte[] computeHashIDCached() throws Throwable {
+        return (byte[]) (Object) Core.COMPUTE_HASH_ID.invokeExact((Object) keys[next++ & (CACHED_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public byte[] computeHashIDUncached() throws Throwable {
+        return (byte[]) (Object) Core.COMPUTE_HASH_ID.invokeExact((Object) keys[next++ & (UNCACHED_KEYS - 1)]);
+    }
+
+    @Benchmark
+    public int distanceBytes() throws Throwable {
+        return (int) Core.DISTANCE_BYTES.invokeExact((Object) a, (Object) b);
+    }
+
+    @Benchmark
+    public int distance() throws Throwable {
+        return (int) Core.DISTANCE.invokeExact(hashA, hashB);
+    }
+}
@@ -0,0 +1,108 @@
+package crn.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole operations between nodes in this JVM, over UDP on the loopback interface:
+// the nearest search, the request, the response and everything in between.
+// Sample time mode reports the latency percentiles as well as the mean.
+//
+// The keys are held by the server nodes.  The client knows the servers but they
+// never learn its name, so no key is ever replicated to it and every read, exists
+// and CAS has to go over the network.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final int FIRST_PORT = 21300;
+    private static final int SERVERS = 4;
+    private static final int KEYS = 256;
+
+    private Object client;
+    private Object[] servers;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        servers = new Object[SERVERS];
+        for (int i = 0; i < SERVERS; i++) {
+            servers[i] = start("N:server" + i, FIRST_PORT + 1 + i);
+        }
+        client = start("N:client", FIRST_PORT);
+        for (int i = 0; i < SERVERS; i++) {
+            String address = "127.0.0.1:" + (FIRST_PORT + 1 + i);
+            Object learnt = (Object) Core.LEARN_ADDRESS.invokeExact(client, (Object) ("N:server" + i), (Object) address);
+            for (Object server : servers) {
+                learnt = (Object) Core.LEARN_ADDRESS.invokeExact(server, (Object) ("N:server" + i), (Object) address);
+            }
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "D:loopback " + i;
+            boolean written = (boolean) Core.WRITE.invokeExact(servers[i % SERVERS], (Object) keys[i], (Object) "0");
+            if (!written) {
+                throw new IllegalStateException("Couldn't write " + keys[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Core.SHUTDOWN.invokeExact(client);
+        for (Object server : servers) {
+            Core.SHUTDOWN.invokeExact(server);
+        }
+    }
+
+    @Benchmark
+    public String read() throws Throwable {
+        return (String) (Object) Core.READ.invokeExact(client, (Object) randomKey());
+    }
+
+    @Benchmark
+    public boolean exists() throws Throwable {
+        return (boolean) Core.EXISTS.invokeExact(client, (Object) randomKey());
+    }
+
+    @Benchmark
+    public boolean write() throws Throwable {
+        return (boolean) Core.WRITE.invokeExact(client, (Object) randomKey(), (Object) "1");
+    }
+
+    @Benchmark
+    public boolean cas() throws Throwable {
+        String key = randomKey();
+        String current = (String) (Object) Core.READ.invokeExact(client, (Object) key);
+        String next = String.valueOf(ThreadLocalRandom.current().nextInt(1000));
+        return (boolean) Core.CAS.invokeExact(client, (Object) key, (Object) current, (Object) next);
+    }
+
+    private Object start(String name, int port) throws Throwable {
+        Object node = (Object) Core.NEW_NODE.invokeExact();
+        Core.SET_NODE_NAME.invokeExact(node, (Object) name);
+        Core.OPEN_PORT.invokeExact(node, port);
+        // Probing in the background would only add noise
+        Core.SET_LIVENESS_INTERVAL.invokeExact(node, 0L);
+        return node;
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+}
@@ -0,0 +1,71 @@
+package crn.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The local store under contention: several threads reading, writing and
+// compare-and-swapping keys in one store.  With few keys the threads keep
+// landing on the same keys and segments; with many they rarely meet.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    @Param({"16", "100000"})
+    public int keyCount;
+
+    private Object store;
+    private String[] keys;
+    private String[] values;
+
+    @Setup
+    public void setUp() throws Throwable {
+        store = (Object) Core.NEW_STORE.invokeExact();
+        keys = new String[keyCount];
+        values = new String[] {"slithy toves", "borogoves", "mome raths", "jubjub bird"};
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "D:key " + i;
+            Object previous = (Object) Core.STORE_PUT.invokeExact(store, (Object) keys[i], (Object) values[0], Core.LOCAL);
+        }
+    }
+
+    @Benchmark
+    public String get() throws Throwable {
+        return (String) (Object) Core.STORE_GET.invokeExact(store, (Object) randomKey());
+    }
+
+    @Benchmark
+    public String put() throws Throwable {
+        return (String) (Object) Core.STORE_PUT.invokeExact(store, (Object) randomKey(), (Object) randomValue(), Core.LOCAL);
+    }
+
+    @Benchmark
+    public boolean cas() throws Throwable {
+        return (boolean) Core.STORE_REPLACE.invokeExact(store, (Object) randomKey(), (Object) randomValue(),
+                (Object) randomValue(), Core.LOCAL);
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    private String randomValue() {
+        return values[ThreadLocalRandom.current().nextInt(values.length)];
+    }
+}
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CompactStoreTest {
+
+    // A segment's table starts with 16 slots, so keys in the same segment whose hashIDs
+    // end in the same four bits share a home slot and sit in one run of the table
+    @Test
+    void deleteMovesTheRestOfTheRunBack() {
+        for (int home : new int[] { 3, 15 }) {
+            List<String> keys = sameHomeSlot(home, 4);
+            for (int gone = 0; gone < keys.size(); gone++) {
+                CompactStore store = new CompactStore();
+                for (String key : keys) {
+                    store.put(key, "value of " + key, KeyValueStore.LOCAL);
+                }
+                store.remove(keys.get(gone), KeyValueStore.LOCAL);
+                for (int i = 0; i < keys.size(); i++) {
+                    assertEquals(i == gone ? null : "value of " + keys.get(i), store.get(keys.get(i)));
+                }
+                // The slot freed by the move back is reused, not left as a gap
+                store.put(keys.get(gone), "again", KeyValueStore.LOCAL);
+                assertEquals("again", store.get(keys.get(gone)));
+                assertEquals(keys.size(), store.size());
+            }
+        }
+    }
+
+    @Test
+    void deletesAmongManyKeys() {
+        CompactStore store = new CompactStore();
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(23);
+        for (int i = 0; i < 20000; i++) {
+            String key = "D:key " + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), store.remove(key, KeyValueStore.LOCAL));
+            } else {
+                String value = "value " + i;
+                assertEquals(expected.put(key, value), store.put(key, value, KeyValueStore.LOCAL));
+            }
+        }
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(expected.get("D:key " + i), store.get("D:key " + i));
+        }
+    }
+
+    // Values that grow are appended each time, until the dead records outweigh the live
+    // ones and the segment's slabs are copied
+    @Test
+    void compactionKeepsTheLiveRecords() {
+        CompactStore store = new CompactStore();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                store.put("D:key " + i, "x".repeat(round + 1) + i, i % 2 == 0 ? KeyValueStore.LOCAL : KeyValueStore.REPLICA);
+            }
+            for (int i = 500; i < 520; i++) {
+                store.put("D:key " + i, "short lived", KeyValueStore.LOCAL);
+                store.remove("D:key " + i, KeyValueStore.LOCAL);
+            }
+        }
+        assertEquals(500, store.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("x".repeat(20) + i, store.get("D:key " + i));
+            assertEquals(i % 2 == 0 ? KeyValueStore.LOCAL : KeyValueStore.REPLICA, store.flags("D:key " + i));
+        }
+        for (int i = 500; i < 520; i++) {
+            assertNull(store.get("D:key " + i));
+        }
+        Map<String, String> visited = new HashMap<>();
+        store.forEach((key, value, flags) -> visited.put(key, value));
+        assertEquals(500, visited.size());
+    }
+
+    private static List<String> sameHomeSlot(int home, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            long h0 = HashID.of("D:key " + i).h0;
+            if (CompactStore.segmentOf(h0) == 0 && ((int) h0 & 15) == home) {
+                keys.add("D:key " + i);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,182 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Restarts a DurableStore over the same directory and checks what comes back
+class DurableStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysTheLogOnRestart() throws IOException {
+        try (DurableStore store = open()) {
+            store.put("D:kept", "one", KeyValueStore.LOCAL);
+            store.put("D:kept", "two", KeyValueStore.REPLICA);
+            store.put("D:gone", "x", KeyValueStore.REPLICA);
+            store.remove("D:gone", KeyValueStore.REPLICA);
+            store.put("D:both", "y", KeyValueStore.LOCAL | KeyValueStore.REPLICA);
+            store.remove("D:both", KeyValueStore.LOCAL);
+            assertTrue(store.replace("D:kept", "two", "three", KeyValueStore.LOCAL));
+        }
+        try (DurableStore store = open()) {
+            assertEquals("three", store.get("D:kept"));
+            assertEquals(KeyValueStore.LOCAL | KeyValueStore.REPLICA, store.flags("D:kept"));
+            assertNull(store.get("D:gone"));
+            assertEquals("y", store.get("D:both"));
+            assertEquals(KeyValueStore.REPLICA, store.flags("D:both"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    void readsALogUpToATornRecord() throws IOException {
+        try (DurableStore store = open()) {
+            store.put("D:first", "1", KeyValueStore.LOCAL);
+            store.put("D:second", "2", KeyValueStore.LOCAL);
+        }
+        // A crash part way through writing a record leaves its start but not its end
+        Path log = files("log-").get(0);
+        Files.write(log, new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 'P', 1, 0 }, StandardOpenOption.APPEND);
+
+        try (DurableStore store = open()) {
+            assertEquals("1", store.get("D:first"));
+            assertEquals("2", store.get("D:second"));
+            assertEquals(2, store.size());
+            store.put("D:third", "3", KeyValueStore.LOCAL);
+        }
+        // The torn log is never appended to, so what comes after it is still read
+        try (DurableStore store = open()) {
+            assertEquals("3", store.get("D:third"));
+            assertEquals(3, store.size());
+        }
+    }
+
+    @Test
+    void stopsAtARecordThatFailsItsCheck() throws IOException {
+        try (DurableStore store = open()) {
+            store.put("D:first", "1", KeyValueStore.LOCAL);
+            store.put("D:second", "2", KeyValueStore.LOCAL);
+        }
+        Path log = files("log-").get(0);
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(log, bytes);
+
+        try (DurableStore store = open()) {
+            assertEquals("1", store.get("D:first"));
+            assertNull(store.get("D:second"));
+        }
+    }
+
+    @Test
+    void snapshotReplacesTheLogsItCovers() throws IOException {
+        try (DurableStore store = open()) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("D:key " + i, "value " + i, i % 2 == 0 ? KeyValueStore.LOCAL : KeyValueStore.REPLICA);
+            }
+            store.snapshot();
+            store.put("D:key 0", "changed", KeyValueStore.LOCAL);
+            store.remove("D:key 1", KeyValueStore.REPLICA);
+            store.put("D:after", "snapshot", KeyValueStore.REPLICA);
+        }
+        assertEquals(1, files("snapshot-").size());
+        long snapshot = generation(files("snapshot-").get(0));
+        for (Path log : files("log-")) {
+            assertTrue(generation(log) >= snapshot, "log " + log + " is covered by the snapshot");
+        }
+        // A snapshot that was being written when the node stopped isn't read
+        Files.write(directory.resolve("snapshot.tmp"), new byte[] { 'C', 'R', 'N' });
+
+        try (DurableStore store = open()) {
+            assertEquals(1000, store.size());
+            assertEquals("changed", store.get("D:key 0"));
+            assertNull(store.get("D:key 1"));
+            assertEquals("snapshot", store.get("D:after"));
+            for (int i = 2; i < 1000; i++) {
+                assertEquals("value " + i, store.get("D:key " + i));
+                assertEquals(i % 2 == 0 ? KeyValueStore.LOCAL : KeyValueStore.REPLICA, store.flags("D:key " + i));
+            }
+            // A second snapshot swaps in for the first
+            store.snapshot();
+        }
+        assertEquals(1, files("snapshot-").size());
+        assertTrue(generation(files("snapshot-").get(0)) > snapshot);
+        try (DurableStore store = open()) {
+            assertEquals(1000, store.size());
+            assertEquals("changed", store.get("D:key 0"));
+        }
+    }
+
+    @Test
+    void rejectsASnapshotOfAnotherVersion() throws IOException {
+        try (DurableStore store = open()) {
+            store.put("D:key", "value", KeyValueStore.LOCAL);
+            store.snapshot();
+        }
+        Path snapshot = files("snapshot-").get(0);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[7] = 1;
+        Files.write(snapshot, bytes);
+
+        boolean rejected = false;
+        try (DurableStore store = open()) {
+            store.size();
+        } catch (IOException e) {
+            rejected = e.getMessage().startsWith("Unknown snapshot version");
+        }
+        assertTrue(rejected);
+    }
+
+    // A snapshot whose rotation is still waiting for the writer when the store closes fails,
+    // rather than waiting for a writer that has stopped
+    @Test
+    void closeDoesNotStrandASnapshot() throws Exception {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            DurableStore store = open();
+            store.put("D:key", "value " + attempt, KeyValueStore.LOCAL);
+            Thread snapshot = new Thread(() -> {
+                try {
+                    store.snapshot();
+                } catch (IOException e) {
+                    assertEquals("The store is closed", e.getMessage());
+                }
+            });
+            snapshot.start();
+            store.close();
+            snapshot.join(5000);
+            assertFalse(snapshot.isAlive(), "snapshot stranded on attempt " + attempt);
+        }
+        try (DurableStore store = open()) {
+            assertEquals("value 199", store.get("D:key"));
+        }
+    }
+
+    private DurableStore open() throws IOException {
+        return DurableStore.open(directory, new CompactStore());
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            list.filter(p -> p.getFileName().toString().startsWith(prefix)).sorted().forEach(files::add);
+        }
+        return files;
+    }
+
+    private static long generation(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1));
+    }
+}
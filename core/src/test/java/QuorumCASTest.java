@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// A CAS that fails when some of the key's replicas hold it and some don't
+class QuorumCASTest {
+
+    private static final int NODES = 5;
+    private static final String KEY = "D:quorum";
+
+    private final SimulatedNetwork network = new SimulatedNetwork(new SimulatedNetwork.Settings());
+    private final List<Node> nodes = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        network.shutdown();
+    }
+
+    @Test
+    void failedCASLeavesTheValueTheReplicasHad() throws Exception {
+        start();
+        List<NodeAddress> replicas = nodes.get(0).nearestNodes(HashID.of(KEY)).get();
+        // Only one replica holds the key; the other two add it when sent the C
+        assertEquals(true, nodes.get(0).replicate(replicas.get(0).address, KEY, "old").get());
+        Node client = outside(replicas);
+
+        assertEquals(CASOutcome.VALUE_DIFFERS, client.compareAndSet(KEY, "stale", "new").get());
+        awaitEveryReplicaHolds(client, replicas, "old");
+    }
+
+    @Test
+    void failedCASPutsBackThisNodesOwnCopy() throws Exception {
+        start();
+        List<NodeAddress> replicas = nodes.get(0).nearestNodes(HashID.of(KEY)).get();
+        Node client = nodeNamed(replicas.get(2).name);
+        // The client is a replica without the key, as is one other; the third holds it
+        assertEquals(true, client.replicate(replicas.get(0).address, KEY, "old").get());
+
+        assertEquals(CASOutcome.VALUE_DIFFERS, client.compareAndSet(KEY, "stale", "new").get());
+        awaitEveryReplicaHolds(outside(replicas), replicas, "old");
+        assertEquals("old", client.replicaValue(KEY));
+    }
+
+    private void start() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(network.startNode("N:quorum" + i));
+        }
+        for (int i = 0; i < NODES; i++) {
+            for (int j = 0; j < NODES; j++) {
+                if (i != j) {
+                    nodes.get(i).learnAddress("N:quorum" + j, network.addressOf(j));
+                }
+            }
+        }
+    }
+
+    private Node outside(List<NodeAddress> replicas) {
+        for (int i = 0; i < NODES; i++) {
+            String name = "N:quorum" + i;
+            if (replicas.stream().noneMatch(r -> r.name.equals(name))) {
+                return nodes.get(i);
+            }
+        }
+        throw new IllegalStateException("Every node is a replica");
+    }
+
+    private Node nodeNamed(String name) {
+        return nodes.get(Integer.parseInt(name.substring("N:quorum".length())));
+    }
+
+    // The replicas are put back after the outcome is known, so this waits a little for them
+    private static void awaitEveryReplicaHolds(Node reader, List<NodeAddress> replicas, String value) throws Exception {
+        List<String> held = new ArrayList<>();
+        for (int attempt = 0; attempt < 50; attempt++) {
+            held.clear();
+            for (NodeAddress replica : replicas) {
+                held.add(reader.readFrom(List.<InetSocketAddress>of(replica.address), KEY).get());
+            }
+            if (held.stream().allMatch(value::equals)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(List.of(value, value, value), held);
+    }
+}
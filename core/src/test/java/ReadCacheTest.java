@@ -0,0 +1,38 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class ReadCacheTest {
+
+    @Test
+    void readFromBeforeAnInvalidationIsNotCached() {
+        ReadCache cache = new ReadCache(1 << 20, 60_000, 60_000);
+        long stamp = cache.stamp("D:key");
+        // This node writes the key while the read is still out
+        cache.invalidate("D:key");
+        cache.put("D:key", "before the write", stamp);
+        assertNull(cache.get("D:key"));
+
+        cache.put("D:key", "after the write", cache.stamp("D:key"));
+        assertEquals("after the write", cache.get("D:key").value);
+    }
+
+    @Test
+    void staleNegativeIsNotCached() {
+        ReadCache cache = new ReadCache(1 << 20, 60_000, 60_000);
+        long stamp = cache.stamp("D:new");
+        cache.invalidate("D:new");
+        cache.put("D:new", null, stamp);
+        assertNull(cache.get("D:new"));
+    }
+
+    @Test
+    void otherKeysAreStillCached() {
+        ReadCache cache = new ReadCache(1 << 20, 60_000, 60_000);
+        long stamp = cache.stamp("D:other");
+        cache.invalidate("D:key");
+        cache.put("D:other", "value", stamp);
+        assertEquals("value", cache.get("D:other").value);
+    }
+}
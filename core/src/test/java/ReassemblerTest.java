@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ReassemblerTest {
+
+    private static final InetSocketAddress SENDER = new InetSocketAddress("10.0.0.1", 20110);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("10.0.0.2", 20110);
+    private static final int TXID = 0x6162;
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private final Reassembler reassembler = new Reassembler(transport, key -> true);
+
+    @Test
+    void outOfOrderFragmentsAreJoined() {
+        byte[] message = message(2 * Fragmenter.FRAGMENT_BYTES + 10);
+        assertNull(fragment(SENDER, TXID, message, 2, 3));
+        // The last one came first, so the sender is asked for the rest straight away
+        assertEquals("ab M R 0 1", transport.sent().get(0));
+        assertNull(fragment(SENDER, TXID, message, 0, 3));
+        ByteBuffer joined = fragment(SENDER, TXID, message, 1, 3);
+
+        assertNotNull(joined);
+        assertArrayEquals(message, bytes(joined));
+        assertEquals(0, reassembler.size());
+        assertEquals(0, reassembler.bytesHeld());
+    }
+
+    @Test
+    void duplicateFragmentsAreIgnored() {
+        byte[] message = message(Fragmenter.FRAGMENT_BYTES + 10);
+        assertNull(fragment(SENDER, TXID, message, 0, 2));
+        long held = reassembler.bytesHeld();
+        assertNull(fragment(SENDER, TXID, message, 0, 2));
+        assertEquals(held, reassembler.bytesHeld());
+
+        assertArrayEquals(message, bytes(fragment(SENDER, TXID, message, 1, 2)));
+        // A fragment sent again after the message is finished doesn't start a new one
+        assertNull(fragment(SENDER, TXID, message, 0, 2));
+        assertNull(fragment(SENDER, TXID, message, 1, 2));
+        assertEquals(0, reassembler.size());
+        assertTrue(reassembler.finished(SENDER, TXID, 'R'));
+    }
+
+    @Test
+    void senderCanOnlyStartSoManyMessages() {
+        byte[] message = message(Fragmenter.FRAGMENT_BYTES + 10);
+        for (int txid = 1; txid <= Reassembler.MAX_PARTIALS_PER_SENDER; txid++) {
+            assertNull(fragment(SENDER, txid, message, 0, 2));
+        }
+        assertEquals(Reassembler.MAX_PARTIALS_PER_SENDER, reassembler.size());
+        int over = Reassembler.MAX_PARTIALS_PER_SENDER + 1;
+        assertNull(fragment(SENDER, over, message, 0, 2));
+        assertEquals(Reassembler.MAX_PARTIALS_PER_SENDER, reassembler.size());
+
+        // Other senders aren't held up, and finishing a message makes room for another
+        assertNull(fragment(OTHER, over, message, 0, 2));
+        assertEquals(Reassembler.MAX_PARTIALS_PER_SENDER + 1, reassembler.size());
+        assertNotNull(fragment(SENDER, 1, message, 1, 2));
+        assertNull(fragment(SENDER, over, message, 0, 2));
+        assertArrayEquals(message, bytes(fragment(SENDER, over, message, 1, 2)));
+    }
+
+    @Test
+    void messageLongerThanTheLimitIsRejected() {
+        byte[] message = message(Fragmenter.FRAGMENT_BYTES + 10);
+        int most = Fragmenter.MAX_MESSAGE_BYTES / Fragmenter.FRAGMENT_BYTES + 1;
+        assertNull(fragment(SENDER, 1, message, 0, most + 1));
+        assertEquals(0, reassembler.size());
+        assertEquals(0, reassembler.bytesHeld());
+
+        assertNull(fragment(SENDER, 2, message, 0, most));
+        assertEquals(1, reassembler.size());
+    }
+
+    // Sends fragment seq of message, as a Fragmenter would, in a response with opcode R
+    private ByteBuffer fragment(InetSocketAddress sender, int txid, byte[] message, int seq, int count) {
+        int start = Math.min(seq * Fragmenter.FRAGMENT_BYTES, message.length - 1);
+        int length = Math.min(Fragmenter.FRAGMENT_BYTES, message.length - start);
+        ByteBuffer datagram = new CRNWriter().reset(ByteBuffer.allocate(BufferPool.BUFFER_SIZE))
+                .header(txid, 'P').character('R').decimal(seq).decimal(count)
+                .tail(ByteBuffer.wrap(message), start, length).finish();
+        CRNReader in = new CRNReader().reset(datagram);
+        int received = in.transactionID();
+        assertEquals('P', in.opcode());
+        char opcode = in.nextChar();
+        return reassembler.fragment(in, received, opcode, sender);
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (i % 251);
+        }
+        return message;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Keeps the M messages asking for missing fragments
+    private static final class RecordingTransport implements Transport {
+        private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public ByteBuffer acquire() {
+            return ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+        }
+
+        @Override
+        public void send(ByteBuffer data, InetSocketAddress destination) {
+            sent.add(StandardCharsets.ISO_8859_1.decode(data.duplicate()).toString());
+        }
+
+        List<String> sent() {
+            return List.copyOf(sent);
+        }
+
+        @Override
+        public int localPort() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
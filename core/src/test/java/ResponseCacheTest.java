@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ResponseCacheTest {
+
+    private static final InetSocketAddress SENDER = new InetSocketAddress("10.0.0.1", 20110);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("10.0.0.2", 20110);
+
+    @Test
+    void retransmittedRequestGetsTheCachedReply() {
+        ResponseCache cache = new ResponseCache(16, 60_000);
+        int request = fingerprint("ab C 0 D:key 0 old 0 new ");
+        assertNull(cache.begin(SENDER, 0x6162, request));
+        // A copy that comes while the first is being handled is dropped
+        assertNull(cache.begin(SENDER, 0x6162, request).reply);
+
+        cache.complete(SENDER, 0x6162, bytes("ab D A"));
+        ResponseCache.Entry earlier = cache.begin(SENDER, 0x6162, request);
+        assertNotNull(earlier);
+        assertArrayEquals("ab D A".getBytes(StandardCharsets.UTF_8), earlier.reply);
+        assertArrayEquals("ab D A".getBytes(StandardCharsets.UTF_8), cache.reply(SENDER, 0x6162));
+    }
+
+    @Test
+    void reusedTxidWithAnotherRequestIsRunAgain() {
+        ResponseCache cache = new ResponseCache(16, 60_000);
+        assertNull(cache.begin(SENDER, 0x6162, fingerprint("ab C 0 D:key 0 old 0 new ")));
+        cache.complete(SENDER, 0x6162, bytes("ab D A"));
+
+        assertNull(cache.begin(SENDER, 0x6162, fingerprint("ab C 0 D:key 0 new 0 newer ")));
+        // The earlier reply is gone, as it answered another request
+        assertNull(cache.reply(SENDER, 0x6162));
+        // The same txid from another node is another request too
+        assertNull(cache.begin(OTHER, 0x6162, fingerprint("ab C 0 D:key 0 old 0 new ")));
+    }
+
+    @Test
+    void abandonedRequestIsRunAgain() {
+        ResponseCache cache = new ResponseCache(16, 60_000);
+        int request = fingerprint("ab W 0 D:key 0 value ");
+        assertNull(cache.begin(SENDER, 0x6162, request));
+        cache.abandon(SENDER, 0x6162);
+        assertNull(cache.begin(SENDER, 0x6162, request));
+
+        // One that was answered isn't forgotten by a late abandon
+        cache.complete(SENDER, 0x6162, bytes("ab X A"));
+        cache.abandon(SENDER, 0x6162);
+        assertNotNull(cache.begin(SENDER, 0x6162, request));
+    }
+
+    @Test
+    void entriesExpire() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(16, 50);
+        int request = fingerprint("ab W 0 D:key 0 value ");
+        assertNull(cache.begin(SENDER, 0x6162, request));
+        cache.complete(SENDER, 0x6162, bytes("ab X A"));
+        Thread.sleep(100);
+        assertNull(cache.reply(SENDER, 0x6162));
+        assertNull(cache.begin(SENDER, 0x6162, request));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void oldestAreEvictedWhenFull() {
+        ResponseCache cache = new ResponseCache(2, 60_000);
+        int request = fingerprint("ab W 0 D:key 0 value ");
+        for (int txid = 1; txid <= 3; txid++) {
+            assertNull(cache.begin(SENDER, txid, request));
+            cache.complete(SENDER, txid, bytes("ab X A"));
+        }
+        assertEquals(2, cache.size());
+        assertNotNull(cache.reply(SENDER, 3));
+        assertNotNull(cache.reply(SENDER, 2));
+        assertNull(cache.reply(SENDER, 1));
+    }
+
+    @Test
+    void fingerprintCoversTheRestOfTheMessage() {
+        ByteBuffer first = bytes("ab C 0 D:key 0 old 0 new ");
+        ByteBuffer second = bytes("cd C 0 D:key 0 old 0 new ");
+        // The txid isn't part of it, everything after the opcode is
+        assertEquals(ResponseCache.fingerprint(first, 4), ResponseCache.fingerprint(second, 4));
+        assertNotEquals(ResponseCache.fingerprint(first, 4), ResponseCache.fingerprint(bytes("ab C 0 D:key 0 old 0 neW "), 4));
+    }
+
+    // A C sent twice over UDP is only run once: the second copy gets the first's D A, where
+    // running it again would give D N, as the key now holds the new value
+    @Test
+    void nodeAnswersARetransmittedCASOnce() throws Exception {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        Node node = new Node();
+        node.setNodeName("N:responses");
+        node.openPort(port);
+        try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            client.setSoTimeout(2000);
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            String cas = "ab C 0 D:once 0 old 0 new ";
+            assertEquals("ab D A", exchange(client, address, cas));
+            assertEquals("ab D A", exchange(client, address, cas));
+            // The same txid with another body is a new request, and is run
+            assertEquals("ab D R", exchange(client, address, "ab C 0 D:once 0 new 0 newer "));
+            assertEquals("cd D N", exchange(client, address, "cd C 0 D:once 0 new 0 newest "));
+        } finally {
+            node.shutdown();
+        }
+    }
+
+    private static String exchange(DatagramSocket client, InetSocketAddress node, String request) throws Exception {
+        byte[] out = request.getBytes(StandardCharsets.UTF_8);
+        client.send(new DatagramPacket(out, out.length, node));
+        DatagramPacket in = new DatagramPacket(new byte[1024], 1024);
+        client.receive(in);
+        return new String(in.getData(), 0, in.getLength(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static int fingerprint(String request) {
+        return ResponseCache.fingerprint(bytes(request), 4);
+    }
+
+    private static ByteBuffer bytes(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SummarizedStoreTest {
+
+    @Test
+    void filterGrowsWithTheKeys() {
+        CountingBloomFilter filter = new CountingBloomFilter();
+        SummarizedStore store = new SummarizedStore(new CompactStore(), filter, () -> { });
+        assertEquals(CountingBloomFilter.MIN_BITS, filter.size());
+        for (int i = 0; i < 5000; i++) {
+            store.put("D:key " + i, "value", KeyValueStore.LOCAL);
+        }
+        assertEquals(CountingBloomFilter.bitsFor(5000), filter.size());
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(filter.mightContain("D:key " + i));
+        }
+        assertTrue(falsePositives(filter.bits()) < 0.01);
+    }
+
+    @Test
+    void filterShrinksAsKeysGo() {
+        CountingBloomFilter filter = new CountingBloomFilter();
+        SummarizedStore store = new SummarizedStore(new CompactStore(), filter, () -> { });
+        for (int i = 0; i < 5000; i++) {
+            store.put("D:key " + i, "value", KeyValueStore.REPLICA);
+        }
+        int version = filter.version();
+        for (int i = 0; i < 4900; i++) {
+            store.remove("D:key " + i, KeyValueStore.REPLICA);
+        }
+        assertEquals(CountingBloomFilter.MIN_BITS, filter.size());
+        for (int i = 4900; i < 5000; i++) {
+            assertTrue(filter.mightContain("D:key " + i));
+        }
+        // Peers can't be sent changes across a rebuild, only the whole filter
+        assertNull(filter.changesSince(version, filter.version()));
+        assertEquals(0, filter.changesSince(filter.version(), filter.version()).length);
+    }
+
+    // Starts at the size for the keys the store already holds
+    @Test
+    void sizedForAnExistingStore() {
+        CompactStore keys = new CompactStore();
+        for (int i = 0; i < 3000; i++) {
+            keys.put("D:key " + i, "value", KeyValueStore.LOCAL);
+        }
+        CountingBloomFilter filter = new CountingBloomFilter();
+        new SummarizedStore(keys, filter, () -> { });
+        assertEquals(CountingBloomFilter.bitsFor(3000), filter.size());
+        byte[] bits = filter.bits();
+        assertEquals(filter.size() / 8, bits.length);
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(CountingBloomFilter.mightContain(bits, "D:key " + i));
+        }
+    }
+
+    private static double falsePositives(byte[] bits) {
+        int found = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (CountingBloomFilter.mightContain(bits, "D:other " + i)) {
+                found++;
+            }
+        }
+        return found / 10000.0;
+    }
+}
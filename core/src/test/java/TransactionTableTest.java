@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class TransactionTableTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress("10.0.0.1", 20110);
+    private static final InetSocketAddress STRANGER = new InetSocketAddress("10.0.0.2", 20110);
+
+    // Transaction IDs without a space in either byte
+    private static final int USABLE = 0x10000 - 511;
+
+    @Test
+    void responseFromAnotherAddressIsIgnored() throws Exception {
+        TransactionTable<String> table = new TransactionTable<>();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        int txid = table.register(future, PEER, 60_000);
+
+        assertFalse(table.isWaiting(txid, STRANGER));
+        assertFalse(table.complete(txid, STRANGER, "stray"));
+        assertFalse(future.isDone());
+        assertTrue(table.isWaiting(txid, PEER));
+
+        assertTrue(table.complete(txid, PEER, "answer"));
+        assertEquals("answer", future.get());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void noTransactionIDHasASpaceByte() {
+        TransactionTable<String> table = new TransactionTable<>();
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < USABLE; i++) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            int txid = table.register(future, PEER, 60_000);
+            assertNotEquals(' ', txid >>> 8);
+            assertNotEquals(' ', txid & 0xFF);
+            assertTrue(seen.add(txid), "ID given out twice in one cycle");
+            table.complete(txid, PEER, "answer");
+        }
+    }
+
+    @Test
+    void completedIDIsReusedButAWaitingOneIsNot() {
+        TransactionTable<String> table = new TransactionTable<>();
+        CompletableFuture<String> waiting = new CompletableFuture<>();
+        int held = table.register(waiting, PEER, 60_000);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        int freed = table.register(first, PEER, 60_000);
+        table.complete(freed, PEER, "answer");
+
+        // A whole cycle of IDs comes round to the freed one and skips the held one
+        boolean reused = false;
+        for (int i = 0; i < USABLE; i++) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            int txid = table.register(future, PEER, 60_000);
+            assertNotEquals(held, txid);
+            reused |= txid == freed;
+            table.complete(txid, PEER, "answer");
+        }
+        assertTrue(reused);
+        assertFalse(waiting.isDone());
+        assertTrue(table.isWaiting(held, PEER));
+    }
+
+    @Test
+    void timedOutIDIsFreedAndItsLateResponseIgnored() throws Exception {
+        TransactionTable<String> table = new TransactionTable<>();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        int txid = table.register(future, PEER, 20);
+
+        ExecutionException failure = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+        for (int attempt = 0; attempt < 50 && table.isWaiting(txid); attempt++) {
+            Thread.sleep(10);
+        }
+        assertFalse(table.isWaiting(txid));
+        assertFalse(table.complete(txid, PEER, "late"));
+
+        // The ID is given out again, and only the new answer completes the new request
+        for (int i = 0; i < USABLE; i++) {
+            CompletableFuture<String> next = new CompletableFuture<>();
+            if (table.register(next, PEER, 60_000) == txid) {
+                assertFalse(next.isDone());
+                assertTrue(table.complete(txid, PEER, "answer"));
+                assertEquals("answer", next.get());
+                return;
+            }
+        }
+        throw new AssertionError("Timed out ID was never given out again");
+    }
+}
@@ -0,0 +1,15 @@
+// How many of a key's replicas must acknowledge a write before it counts as done
+public enum AckPolicy {
+    ANY,
+    QUORUM,
+    ALL;
+
+    // The number of acknowledgements needed from replicas replicas
+    int required(int replicas) {
+        switch (this) {
+            case ANY: return Math.min(1, replicas);
+            case QUORUM: return replicas / 2 + 1;
+            default: return replicas;
+        }
+    }
+}
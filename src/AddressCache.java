@@ -0,0 +1,54 @@
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The most recently used node names and addresses, looked up either way.
+// The routing table only keeps a few nodes at each distance; this remembers the
+// others we have come across, so relays can be reached and requests to an address
+// can be relayed by name without another nearest search.
+class AddressCache {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, InetSocketAddress> addresses;
+    private final Map<InetSocketAddress, String> names = new HashMap<>();
+
+    AddressCache(int capacity) {
+        this.capacity = capacity;
+        this.addresses = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized void put(String name, InetSocketAddress address) {
+        InetSocketAddress previous = addresses.put(name, address);
+        if (previous != null && !previous.equals(address)) {
+            names.remove(previous, name);
+        }
+        names.put(address, name);
+        if (addresses.size() > capacity) {
+            Map.Entry<String, InetSocketAddress> eldest = addresses.entrySet().iterator().next();
+            addresses.remove(eldest.getKey());
+            names.remove(eldest.getValue(), eldest.getKey());
+        }
+    }
+
+    synchronized InetSocketAddress address(String name) {
+        return addresses.get(name);
+    }
+
+    synchronized String name(InetSocketAddress address) {
+        return names.get(address);
+    }
+
+    synchronized int size() {
+        return addresses.size();
+    }
+
+    // Forgets name's address if it is still the one given, for when it has stopped answering
+    synchronized void remove(String name, InetSocketAddress address) {
+        if (addresses.remove(name, address)) {
+            names.remove(address, name);
+        }
+    }
+}
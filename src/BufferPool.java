@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Reusable direct buffers for sending and receiving datagrams.
+// A buffer that is never given back is simply garbage collected; the pool
+// just saves allocating a new one for every message.
+class BufferPool {
+
+    static final int BUFFER_SIZE = 1024;
+
+    private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 4096);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // One pool for all the nodes in this JVM
+    static BufferPool shared() {
+        return SHARED;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+// How a compare-and-swap across a key's replicas turned out
+public enum CASOutcome {
+    // A quorum of the replicas held the expected value and now hold the new one
+    APPLIED,
+    // The replicas that answered hold some other value, so nothing was changed;
+    // read the key again before retrying
+    VALUE_DIFFERS,
+    // Some replicas made the change but not a quorum, because they disagreed or
+    // didn't answer.  Those that made it have been asked to change it back.
+    NO_QUORUM
+}
@@ -0,0 +1,203 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Reads CRN messages straight out of a received buffer.
+// Fields are tracked as an offset and length inside the buffer so a request
+// can be parsed and dispatched without any substring/split copies; a String is
+// only built when a caller actually needs one (e.g. for a map lookup).
+class CRNReader {
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private int fieldStart;
+    private int fieldLength;
+
+    // Direct buffers have no array to decode from, so fields are copied out here first
+    private static final ThreadLocal<byte[][]> scratch = ThreadLocal.withInitial(() -> new byte[][] { new byte[256] });
+
+    CRNReader reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.fieldStart = 0;
+        this.fieldLength = 0;
+        return this;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int position() {
+        return position;
+    }
+
+    int remaining() {
+        return limit - position;
+    }
+
+    // Two bytes followed by a space, returned as an unsigned 16 bit value.
+    // Returns -1 if the message is too short to have a transaction ID.
+    int transactionID() {
+        if (limit - position < 3 || buffer.get(position + 2) != ' ') {
+            return -1;
+        }
+        int txid = ((buffer.get(position) & 0xFF) << 8) | (buffer.get(position + 1) & 0xFF);
+        position += 3;
+        return txid;
+    }
+
+    // The single character message type.  Returns 0 if there isn't one.
+    char opcode() {
+        if (position >= limit) {
+            return 0;
+        }
+        return (char) (buffer.get(position++) & 0xFF);
+    }
+
+    // Single character fields such as the Y/N/? in responses.
+    char nextChar() {
+        skipSeparator();
+        if (position >= limit) {
+            return 0;
+        }
+        return (char) (buffer.get(position++) & 0xFF);
+    }
+
+    // Locates the next "count space string space" field.
+    // The string runs until the (count + 1)th space, so it may contain spaces itself.
+    boolean nextString() {
+        skipSeparator();
+        int p = position;
+        int count = 0;
+        int digits = 0;
+        while (p < limit) {
+            byte b = buffer.get(p);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            count = count * 10 + (b - '0');
+            if (++digits > 9) {
+                return false;
+            }
+            p++;
+        }
+        if (digits == 0 || p >= limit || buffer.get(p) != ' ') {
+            return false;
+        }
+        int start = ++p;
+        int spaces = 0;
+        while (p < limit) {
+            if (buffer.get(p) == ' ') {
+                if (spaces == count) {
+                    fieldStart = start;
+                    fieldLength = p - start;
+                    position = p + 1;
+                    return true;
+                }
+                spaces++;
+            }
+            p++;
+        }
+        return false;
+    }
+
+    // A number field, or -1 if the next field isn't one
+    int nextInt() {
+        skipSeparator();
+        int value = 0;
+        int digits = 0;
+        while (position < limit && digits < 9) {
+            byte b = buffer.get(position);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+            position++;
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    // Makes the rest of the message, after one space, the current field
+    boolean nextTail() {
+        if (position >= limit || buffer.get(position) != ' ') {
+            return false;
+        }
+        fieldStart = position + 1;
+        fieldLength = limit - fieldStart;
+        position = limit;
+        return true;
+    }
+
+    // Reads a string field and decodes it, or returns null if it is malformed
+    String nextStringValue() {
+        return nextString() ? fieldAsString() : null;
+    }
+
+    // A hashID is sent as 64 hex digits.  Returns null if they aren't all there.
+    HashID nextHashID() {
+        skipSeparator();
+        if (limit - position < 64) {
+            return null;
+        }
+        long[] words = new long[4];
+        for (int i = 0; i < 64; i++) {
+            int digit = hexValue(buffer.get(position + i));
+            if (digit < 0) {
+                return null;
+            }
+            words[i / 16] = (words[i / 16] << 4) | digit;
+        }
+        position += 64;
+        return new HashID(words[0], words[1], words[2], words[3]);
+    }
+
+    int fieldStart() {
+        return fieldStart;
+    }
+
+    int fieldLength() {
+        return fieldLength;
+    }
+
+    String fieldAsString() {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + fieldStart, fieldLength, StandardCharsets.UTF_8);
+        }
+        byte[][] holder = scratch.get();
+        if (holder[0].length < fieldLength) {
+            holder[0] = new byte[Math.max(fieldLength, holder[0].length * 2)];
+        }
+        byte[] bytes = holder[0];
+        buffer.get(fieldStart, bytes, 0, fieldLength);
+        return new String(bytes, 0, fieldLength, StandardCharsets.UTF_8);
+    }
+
+    // Compares the current field against an ASCII prefix without decoding it
+    boolean fieldStartsWith(String prefix) {
+        if (fieldLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(fieldStart + i) != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipSeparator() {
+        if (position < limit && buffer.get(position) == ' ') {
+            position++;
+        }
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+}
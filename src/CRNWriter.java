@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+
+// Encodes CRN messages directly into a buffer.
+// Strings are written in the "count space string space" form used by formatCRNString,
+// with the UTF-8 encoding done inline so no intermediate String or byte[] is built.
+// A message that doesn't fit is moved to a bigger heap buffer, so the buffer finish()
+// returns may not be the one passed to reset(); the caller still owns that one.
+class CRNWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private ByteBuffer buffer;
+    private boolean finished;
+
+    CRNWriter reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.finished = false;
+        buffer.clear();
+        return this;
+    }
+
+    CRNWriter header(int txid, char opcode) {
+        ensure(4);
+        buffer.put((byte) (txid >>> 8));
+        buffer.put((byte) txid);
+        buffer.put((byte) ' ');
+        buffer.put((byte) opcode);
+        return this;
+    }
+
+    CRNWriter character(char c) {
+        ensure(2);
+        buffer.put((byte) ' ');
+        buffer.put((byte) c);
+        return this;
+    }
+
+    CRNWriter string(CharSequence s) {
+        // At most three bytes a char, as a surrogate pair takes four
+        ensure(3 * s.length() + 13);
+        separate();
+        int spaces = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == ' ') {
+                spaces++;
+            }
+        }
+        putDecimal(spaces);
+        buffer.put((byte) ' ');
+        putUTF8(s);
+        buffer.put((byte) ' ');
+        return this;
+    }
+
+    // Copies a string field that is already UTF-8 encoded in another buffer
+    CRNWriter string(ByteBuffer source, int start, int length) {
+        ensure(length + 13);
+        separate();
+        int spaces = 0;
+        for (int i = 0; i < length; i++) {
+            if (source.get(start + i) == ' ') {
+                spaces++;
+            }
+        }
+        putDecimal(spaces);
+        buffer.put((byte) ' ');
+        raw(source, start, length);
+        buffer.put((byte) ' ');
+        return this;
+    }
+
+    CRNWriter hashID(HashID hashID) {
+        ensure(65);
+        buffer.put((byte) ' ');
+        putHex(hashID.h0);
+        putHex(hashID.h1);
+        putHex(hashID.h2);
+        putHex(hashID.h3);
+        return this;
+    }
+
+    // A number field, such as a fragment's sequence number
+    CRNWriter decimal(int n) {
+        ensure(12);
+        buffer.put((byte) ' ');
+        putDecimal(n);
+        return this;
+    }
+
+    // Bytes copied as they are after a space, as the last field of a message
+    CRNWriter tail(ByteBuffer source, int start, int length) {
+        ensure(length + 1);
+        buffer.put((byte) ' ');
+        return raw(source, start, length);
+    }
+
+    CRNWriter raw(ByteBuffer source, int start, int length) {
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(source.get(start + i));
+        }
+        return this;
+    }
+
+    // Flips the buffer so it is ready to send
+    ByteBuffer finish() {
+        buffer.flip();
+        finished = true;
+        return buffer;
+    }
+
+    // The encoded message once finish() has been called, otherwise null
+    ByteBuffer message() {
+        return finished ? buffer : null;
+    }
+
+    // Moves what has been written to a buffer with room for at least bytes more
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        bigger.put(buffer.flip());
+        buffer = bigger;
+    }
+
+    private void separate() {
+        int p = buffer.position();
+        if (p > 0 && buffer.get(p - 1) != ' ') {
+            buffer.put((byte) ' ');
+        }
+    }
+
+    private void putHex(long word) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.put(HEX[(int) (word >>> shift) & 0xF]);
+        }
+    }
+
+    private void putDecimal(int n) {
+        if (n >= 10) {
+            putDecimal(n / 10);
+        }
+        buffer.put((byte) ('0' + n % 10));
+    }
+
+    private void putUTF8(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
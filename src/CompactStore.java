@@ -0,0 +1,523 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Holds keys and values as UTF-8 bytes packed into large byte[] slabs, rather
+// than as a map of Strings, so a node can hold many more keys in the same heap.
+//
+// Each record is: key length, value length, flags, key bytes, value bytes.
+// Records are found through an open addressing table of the first 64 bits of
+// the key's hashID, with the record's slab and offset alongside.  As hashIDs
+// are already uniformly distributed they are used directly, and keys whose
+// hashIDs share a prefix sit close together in the index, so keys near a
+// hashID can be found by scanning an array of longs.
+//
+// The store is split into segments by the top bits of the hashID, each with its
+// own read/write lock.  A changed value is written over the old record when it
+// fits and appended otherwise; once a segment's slabs are mostly dead records
+// the live ones are copied into new slabs.
+class CompactStore implements KeyValueStore {
+
+    // Slabs start small, so a node with few keys stays small, and double up to SLAB_SIZE
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int FIRST_SLAB_SIZE = 4096;
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int HEADER = 9;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    CompactStore() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return segment(key).get(HashID.of(key).h0, utf8(key));
+    }
+
+    @Override
+    public int flags(String key) {
+        return segment(key).flags(HashID.of(key).h0, utf8(key));
+    }
+
+    @Override
+    public String put(String key, String value, int flags) {
+        return segment(key).put(HashID.of(key).h0, utf8(key), utf8(value), flags, false);
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value, int flags) {
+        return segment(key).put(HashID.of(key).h0, utf8(key), utf8(value), flags, true);
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value, int flags) {
+        return segment(key).replace(HashID.of(key).h0, utf8(key), utf8(expected), utf8(value), flags);
+    }
+
+    @Override
+    public String remove(String key, int flags) {
+        return segment(key).remove(HashID.of(key).h0, utf8(key), flags);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        forEachWithin(null, 256, visitor);
+    }
+
+    @Override
+    public void forEachWithin(HashID target, int maxDistance, Visitor visitor) {
+        // Keys within maxDistance share the first 256 - maxDistance bits with target
+        int prefix = target == null ? 0 : 256 - Math.max(0, Math.min(256, maxDistance));
+        for (int i = 0; i < segments.length; i++) {
+            if (prefix >= SEGMENT_BITS && i != segmentIndex(target.h0)) {
+                continue;
+            }
+            segments[i].visit(target, prefix, visitor);
+        }
+    }
+
+    // Visits each record's bytes in place, holding the segment's read lock.
+    // This is for writing snapshots; the visitor mustn't keep the slab or use the store.
+    void forEachRecord(RecordVisitor visitor) {
+        for (Segment s : segments) {
+            s.visitRecords(visitor);
+        }
+    }
+
+    // Adds a record straight from its bytes, as written by forEachRecord.  Only for
+    // filling a store that is being restored, where the key can't already be present.
+    void load(long h0, ByteBuffer source, int keyLength, int valueLength, int flags) {
+        segments[segmentIndex(h0)].load(h0, source, keyLength, valueLength, flags);
+    }
+
+    // Makes room in the table of the segment h0 falls in for entries more keys, so a store
+    // being restored doesn't grow its tables as it goes
+    void presize(long h0, int entries) {
+        segments[segmentIndex(h0)].presize(entries);
+    }
+
+    // Which segment a key with hashID h0 goes in.  forEachRecord visits them in order.
+    static int segmentOf(long h0) {
+        return segmentIndex(h0);
+    }
+
+    interface RecordVisitor {
+        void visit(long h0, byte[] slab, int offset, int keyLength, int valueLength, int flags);
+    }
+
+    private Segment segment(String key) {
+        return segments[segmentIndex(HashID.of(key).h0)];
+    }
+
+    private static int segmentIndex(long h0) {
+        return (int) (h0 >>> (64 - SEGMENT_BITS));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int intAt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16
+                | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    private static final class Segment {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // hashes[i] is the first 64 bits of the key's hashID; locations[i] is
+        // ((slab << 32) | offset) + 1, with 0 meaning the slot is empty
+        private long[] hashes = new long[16];
+        private long[] locations = new long[16];
+        private int count;
+
+        private final List<byte[]> slabs = new ArrayList<>();
+        private byte[] current;
+        private int position;
+        private long liveBytes;
+        private long deadBytes;
+
+        String get(long h0, byte[] key) {
+            lock.readLock().lock();
+            try {
+                int i = find(h0, key);
+                return i < 0 ? null : value(locations[i]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int flags(long h0, byte[] key) {
+            lock.readLock().lock();
+            try {
+                int i = find(h0, key);
+                return i < 0 ? 0 : slab(locations[i])[offset(locations[i]) + 8];
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        String put(long h0, byte[] key, byte[] value, int flags, boolean onlyIfAbsent) {
+            lock.writeLock().lock();
+            try {
+                int i = find(h0, key);
+                if (i < 0) {
+                    insert(-i - 1, h0, write(0, key, value, flags));
+                    return null;
+                }
+                String previous = value(locations[i]);
+                if (!onlyIfAbsent) {
+                    locations[i] = write(locations[i], key, value, flags | flagsAt(locations[i]));
+                    compactIfWasteful();
+                }
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean replace(long h0, byte[] key, byte[] expected, byte[] value, int flags) {
+            lock.writeLock().lock();
+            try {
+                int i = find(h0, key);
+                if (i < 0 || !valueEquals(locations[i], expected)) {
+                    return false;
+                }
+                locations[i] = write(locations[i], key, value, flags | flagsAt(locations[i]));
+                compactIfWasteful();
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        String remove(long h0, byte[] key, int flags) {
+            lock.writeLock().lock();
+            try {
+                int i = find(h0, key);
+                if (i < 0) {
+                    return null;
+                }
+                long location = locations[i];
+                String previous = value(location);
+                int remaining = flagsAt(location) & ~flags;
+                if (remaining != 0) {
+                    slab(location)[offset(location) + 8] = (byte) remaining;
+                } else {
+                    discard(location);
+                    delete(i);
+                    compactIfWasteful();
+                }
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void load(long h0, ByteBuffer source, int keyLength, int valueLength, int flags) {
+            lock.writeLock().lock();
+            try {
+                int length = HEADER + keyLength + valueLength;
+                long location = allocate(length);
+                byte[] slab = slab(location);
+                int offset = offset(location);
+                putInt(slab, offset, keyLength);
+                putInt(slab, offset + 4, valueLength);
+                slab[offset + 8] = (byte) flags;
+                source.get(slab, offset + HEADER, keyLength + valueLength);
+                liveBytes += length;
+                int i = (int) h0 & (hashes.length - 1);
+                while (locations[i] != 0) {
+                    i = (i + 1) & (hashes.length - 1);
+                }
+                insert(i, h0, location);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return count;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Matches are collected under the lock and visited after it is released,
+        // so the visitor is free to change the store
+        void visit(HashID target, int prefix, Visitor visitor) {
+            List<String> keys = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            List<Integer> flags = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (int i = 0; i < locations.length; i++) {
+                    long location = locations[i];
+                    if (location == 0 || !prefixMatches(hashes[i], target, prefix)) {
+                        continue;
+                    }
+                    String key = key(location);
+                    // Past the first 64 bits the rest of the hashID has to be worked out
+                    if (prefix > 64 && 256 - HashID.of(key).distance(target) < prefix) {
+                        continue;
+                    }
+                    keys.add(key);
+                    values.add(value(location));
+                    flags.add(flagsAt(location));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                visitor.visit(keys.get(i), values.get(i), flags.get(i));
+            }
+        }
+
+        void visitRecords(RecordVisitor visitor) {
+            lock.readLock().lock();
+            try {
+                for (int i = 0; i < locations.length; i++) {
+                    long location = locations[i];
+                    if (location != 0) {
+                        byte[] slab = slab(location);
+                        int offset = offset(location);
+                        visitor.visit(hashes[i], slab, offset + HEADER, intAt(slab, offset),
+                                intAt(slab, offset + 4), slab[offset + 8]);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private static boolean prefixMatches(long h0, HashID target, int prefix) {
+            if (prefix == 0) {
+                return true;
+            }
+            if (prefix >= 64) {
+                return h0 == target.h0;
+            }
+            return (h0 ^ target.h0) >>> (64 - prefix) == 0;
+        }
+
+        // The slot holding key, or -(the empty slot where it would go) - 1
+        private int find(long h0, byte[] key) {
+            int mask = hashes.length - 1;
+            int i = (int) h0 & mask;
+            while (true) {
+                long location = locations[i];
+                if (location == 0) {
+                    return -i - 1;
+                }
+                if (hashes[i] == h0 && keyEquals(location, key)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void insert(int slot, long h0, long location) {
+            hashes[slot] = h0;
+            locations[slot] = location;
+            if (++count > hashes.length * LOAD_FACTOR) {
+                grow();
+            }
+        }
+
+        void presize(int entries) {
+            lock.writeLock().lock();
+            try {
+                int capacity = hashes.length;
+                while (count + entries > capacity * LOAD_FACTOR) {
+                    capacity *= 2;
+                }
+                if (capacity > hashes.length) {
+                    resize(capacity);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void grow() {
+            resize(hashes.length * 2);
+        }
+
+        private void resize(int capacity) {
+            long[] oldHashes = hashes;
+            long[] oldLocations = locations;
+            hashes = new long[capacity];
+            locations = new long[capacity];
+            int mask = hashes.length - 1;
+            for (int j = 0; j < oldLocations.length; j++) {
+                if (oldLocations[j] != 0) {
+                    int i = (int) oldHashes[j] & mask;
+                    while (locations[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[j];
+                    locations[i] = oldLocations[j];
+                }
+            }
+        }
+
+        // Linear probing without tombstones: later entries in the run are moved back
+        // into the gap if their home slot means they would otherwise not be found
+        private void delete(int i) {
+            int mask = hashes.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (locations[j] == 0) {
+                    break;
+                }
+                int home = (int) hashes[j] & mask;
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    hashes[i] = hashes[j];
+                    locations[i] = locations[j];
+                    i = j;
+                }
+            }
+            locations[i] = 0;
+            count--;
+        }
+
+        // Writes a record, over the old one at location if it fits, and returns where it is
+        private long write(long location, byte[] key, byte[] value, int flags) {
+            int length = HEADER + key.length + value.length;
+            if (location != 0 && recordLength(location) >= length) {
+                deadBytes += recordLength(location) - length;
+                liveBytes -= recordLength(location) - length;
+            } else {
+                if (location != 0) {
+                    discard(location);
+                }
+                location = allocate(length);
+                liveBytes += length;
+            }
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            putInt(slab, offset, key.length);
+            putInt(slab, offset + 4, value.length);
+            slab[offset + 8] = (byte) flags;
+            System.arraycopy(key, 0, slab, offset + HEADER, key.length);
+            System.arraycopy(value, 0, slab, offset + HEADER + key.length, value.length);
+            return location;
+        }
+
+        private void discard(long location) {
+            int length = recordLength(location);
+            liveBytes -= length;
+            deadBytes += length;
+        }
+
+        private long allocate(int length) {
+            if (current == null || position + length > current.length) {
+                int size = current == null ? FIRST_SLAB_SIZE : Math.min(SLAB_SIZE, current.length * 2);
+                current = new byte[Math.max(size, length)];
+                slabs.add(current);
+                position = 0;
+            }
+            long location = ((long) (slabs.size() - 1) << 32 | position) + 1;
+            position += length;
+            return location;
+        }
+
+        // Copies the live records into new slabs once more than half of what is held is dead
+        private void compactIfWasteful() {
+            if (deadBytes < FIRST_SLAB_SIZE || deadBytes < liveBytes) {
+                return;
+            }
+            List<byte[]> old = new ArrayList<>(slabs);
+            long[] oldLocations = locations.clone();
+            slabs.clear();
+            current = null;
+            for (int i = 0; i < oldLocations.length; i++) {
+                long location = oldLocations[i];
+                if (location != 0) {
+                    byte[] from = old.get((int) ((location - 1) >>> 32));
+                    int offset = (int) (location - 1);
+                    int length = HEADER + intAt(from, offset) + intAt(from, offset + 4);
+                    long moved = allocate(length);
+                    System.arraycopy(from, offset, slab(moved), offset(moved), length);
+                    locations[i] = moved;
+                }
+            }
+            deadBytes = 0;
+        }
+
+        private byte[] slab(long location) {
+            return slabs.get((int) ((location - 1) >>> 32));
+        }
+
+        private static int offset(long location) {
+            return (int) (location - 1);
+        }
+
+        private int recordLength(long location) {
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            return HEADER + intAt(slab, offset) + intAt(slab, offset + 4);
+        }
+
+        private int flagsAt(long location) {
+            return slab(location)[offset(location) + 8];
+        }
+
+        private boolean keyEquals(long location, byte[] key) {
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            int keyLength = intAt(slab, offset);
+            return keyLength == key.length
+                    && Arrays.equals(slab, offset + HEADER, offset + HEADER + keyLength, key, 0, keyLength);
+        }
+
+        private boolean valueEquals(long location, byte[] value) {
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            int start = offset + HEADER + intAt(slab, offset);
+            int valueLength = intAt(slab, offset + 4);
+            return valueLength == value.length
+                    && Arrays.equals(slab, start, start + valueLength, value, 0, valueLength);
+        }
+
+        private String key(long location) {
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            return new String(slab, offset + HEADER, intAt(slab, offset), StandardCharsets.UTF_8);
+        }
+
+        private String value(long location) {
+            byte[] slab = slab(location);
+            int offset = offset(location);
+            int keyLength = intAt(slab, offset);
+            return new String(slab, offset + HEADER + keyLength, intAt(slab, offset + 4), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+// A Bloom filter that keys can be taken out of as well as put in, summarising the
+// keys a node holds.  Each position counts the keys that hash to it and is set
+// while the count is above zero.  A count that reaches 255 stays there, as the keys
+// behind it can no longer be told apart; that only ever makes the filter say a key
+// may be held when it isn't.
+//
+// The filter has BITS_PER_KEY positions for each key held, rounded up to a power
+// of two between MIN_BITS and MAX_BITS, which with HASHES positions a key keeps
+// false positives to about one in 400 at most until MAX_BITS is outgrown.  Its
+// owner rebuilds it at the new size when the keys outgrow it or fall to a quarter
+// of what it is sized for.
+//
+// Every time a position is set or cleared the version goes up and the position is
+// logged, so another node that has been sent one version can be sent just what has
+// changed since.  The log holds the last CHANGE_LOG changes, and starts again when
+// the filter is rebuilt, so every node is then sent the whole filter.
+class CountingBloomFilter {
+
+    static final int MIN_BITS = 8192;
+    static final int MAX_BITS = 1 << 23;
+    static final int BITS_PER_KEY = 16;
+    static final int HASHES = 4;
+    static final int CHANGE_LOG = 4096;
+
+    private byte[] counts = new byte[MIN_BITS];
+    private final int[] changes = new int[CHANGE_LOG];
+    private int version;
+    // The version the filter was last rebuilt at; changes from before it aren't logged
+    private int rebuiltAt;
+
+    // The size of filter for keys keys
+    static int bitsFor(int keys) {
+        long wanted = (long) keys * BITS_PER_KEY;
+        int bits = MIN_BITS;
+        while (bits < wanted && bits < MAX_BITS) {
+            bits <<= 1;
+        }
+        return bits;
+    }
+
+    // Whether a filter sent as bits() can have this many positions
+    static boolean validSize(long bits) {
+        return bits >= MIN_BITS && bits <= MAX_BITS && Long.bitCount(bits) == 1;
+    }
+
+    synchronized int size() {
+        return counts.length;
+    }
+
+    // Whether the filter should be rebuilt for keys keys
+    synchronized boolean needsResize(int keys) {
+        int bits = bitsFor(keys);
+        return bits > counts.length || bits * 4 <= counts.length;
+    }
+
+    // Starts again with bits positions and the keys keys visits.  The keys mustn't
+    // change meanwhile, or one taken out during it could clear another's positions.
+    synchronized void rebuild(int bits, KeyValueStore keys) {
+        byte[] fresh = new byte[bits];
+        keys.forEach((key, value, flags) -> {
+            long hash = hash(key);
+            for (int i = 0; i < HASHES; i++) {
+                int p = position(hash, i, bits);
+                if (fresh[p] != (byte) 255) {
+                    fresh[p]++;
+                }
+            }
+        });
+        counts = fresh;
+        version++;
+        rebuiltAt = version;
+    }
+
+    synchronized void add(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(hash, i, counts.length);
+            int count = counts[p] & 0xFF;
+            if (count == 255) {
+                continue;
+            }
+            counts[p] = (byte) (count + 1);
+            if (count == 0) {
+                changed(p);
+            }
+        }
+    }
+
+    synchronized void remove(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(hash, i, counts.length);
+            int count = counts[p] & 0xFF;
+            if (count == 0 || count == 255) {
+                continue;
+            }
+            counts[p] = (byte) (count - 1);
+            if (count == 1) {
+                changed(p);
+            }
+        }
+    }
+
+    synchronized boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            if (counts[position(hash, i, counts.length)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized int version() {
+        return version;
+    }
+
+    // The positions changed after version since, up to version until, each as the position
+    // times two plus one if it is set now.  Null if the log doesn't go back that far.
+    synchronized int[] changesSince(int since, int until) {
+        if (since > until || until > version || since < rebuiltAt || version - since > CHANGE_LOG) {
+            return null;
+        }
+        int[] changed = new int[until - since];
+        for (int v = since; v < until; v++) {
+            int p = changes[v % CHANGE_LOG];
+            changed[v - since] = p << 1 | (counts[p] != 0 ? 1 : 0);
+        }
+        return changed;
+    }
+
+    // One bit for each position, set if its count is, eight positions to a byte
+    synchronized byte[] bits() {
+        byte[] bits = new byte[counts.length / 8];
+        for (int p = 0; p < counts.length; p++) {
+            if (counts[p] != 0) {
+                bits[p >>> 3] |= (byte) (1 << (p & 7));
+            }
+        }
+        return bits;
+    }
+
+    // Whether key may be in a filter sent as bits()
+    static boolean mightContain(byte[] bits, String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(hash, i, bits.length * 8);
+            if ((bits[p >>> 3] & (1 << (p & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sets or clears a position in a filter sent as bits()
+    static void set(byte[] bits, int p, boolean set) {
+        if (set) {
+            bits[p >>> 3] |= (byte) (1 << (p & 7));
+        } else {
+            bits[p >>> 3] &= (byte) ~(1 << (p & 7));
+        }
+    }
+
+    // Sets the positions for key in a filter sent as bits()
+    static void add(byte[] bits, String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            set(bits, position(hash, i, bits.length * 8), true);
+        }
+    }
+
+    private void changed(int p) {
+        changes[version % CHANGE_LOG] = p;
+        version++;
+    }
+
+    // 64 bit FNV-1a over the key's chars, the same on every node
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // The i'th of bits positions from two halves of the hash, (h1 + i * h2) mod bits
+    private static int position(long hash, int i, int bits) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, bits);
+    }
+}
@@ -0,0 +1,703 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Keeps a node's store on disk so a restart doesn't lose it.  Reads go
+// straight to the CompactStore in memory.
+//
+// Every change is appended to a write log.  A single writer thread writes
+// whatever has queued up since its last write and fsyncs once for all of it
+// (group commit); a change only returns once it is on disk.  Now and then the
+// store is written out as a compacted snapshot through a memory-mapped file,
+// after which the logs it covers are deleted.  On startup the newest snapshot
+// is mapped and loaded and only the logs written since are replayed.
+//
+// Files are snapshot-<generation> and log-<generation>.  A snapshot with
+// generation g holds everything in the logs before g, so only logs from g on
+// are replayed.  A log that ends part way through a record (a crash during a
+// write) is read up to the last complete record.
+class DurableStore implements KeyValueStore, AutoCloseable {
+
+    // Once the logs hold this much, a snapshot is taken
+    static final long DEFAULT_SNAPSHOT_THRESHOLD = 64L << 20;
+
+    private static final int SNAPSHOT_MAGIC = 0x43524E53; // "CRNS"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_HEADER = 24;
+    private static final int SNAPSHOT_CHUNK = 64 << 20;
+    private static final long SNAPSHOT_CHECK_MS = 5000;
+
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'X';
+
+    private final Path directory;
+    private final long snapshotThreshold;
+    private final CompactStore memory;
+    // A change to a key and its log record are made under the same lock,
+    // so the log has the changes to a key in the same order as the store
+    private final ReentrantLock[] stripes = new ReentrantLock[64];
+
+    // The log writer's queue; seq numbers the records in the order they are queued
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition queued = queueLock.newCondition();
+    private final Condition written = queueLock.newCondition();
+    private ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private long queuedSeq;
+    private long durableSeq;
+    private boolean rotateRequested;
+    private long rotations;
+    private long generation;
+    private IOException failure;
+    private boolean closing;
+    // Set by the writer as it stops, after which nothing more is written
+    private boolean closed;
+
+    private FileChannel log;
+    // Written to the logs since the last snapshot
+    private volatile long logBytes;
+    private final Thread writer;
+    private final Thread snapshotter;
+    // Only one snapshot at a time
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private DurableStore(Path directory, long snapshotThreshold, CompactStore memory) {
+        this.directory = directory;
+        this.snapshotThreshold = snapshotThreshold;
+        this.memory = memory;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.writer = new Thread(this::writeLoop, "CRN-log-writer");
+        this.writer.setDaemon(true);
+        this.snapshotter = new Thread(this::snapshotLoop, "CRN-snapshotter");
+        this.snapshotter.setDaemon(true);
+    }
+
+    // Opens the store in directory, creating it if needed, and restores it into
+    // memory, which should be empty, from the newest snapshot and the logs after it
+    static DurableStore open(Path directory, CompactStore memory) throws IOException {
+        return open(directory, DEFAULT_SNAPSHOT_THRESHOLD, memory);
+    }
+
+    static DurableStore open(Path directory, long snapshotThreshold, CompactStore memory) throws IOException {
+        Files.createDirectories(directory);
+        DurableStore store = new DurableStore(directory, snapshotThreshold, memory);
+        store.recover();
+        store.writer.start();
+        store.snapshotter.start();
+        return store;
+    }
+
+    @Override
+    public String get(String key) {
+        return memory.get(key);
+    }
+
+    @Override
+    public int flags(String key) {
+        return memory.flags(key);
+    }
+
+    @Override
+    public int size() {
+        return memory.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        memory.forEach(visitor);
+    }
+
+    @Override
+    public void forEachWithin(HashID target, int maxDistance, Visitor visitor) {
+        memory.forEachWithin(target, maxDistance, visitor);
+    }
+
+    // The changes below only return once they are durable
+
+    @Override
+    public String put(String key, String value, int flags) {
+        long seq = 0;
+        String previous;
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            int before = memory.flags(key);
+            previous = memory.put(key, value, flags);
+            // Rewriting what is already there doesn't need logging
+            if (!value.equals(previous) || (before & flags) != flags) {
+                seq = append(logRecord(PUT, flags, key, value));
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return previous;
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value, int flags) {
+        long seq = 0;
+        String previous;
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            previous = memory.putIfAbsent(key, value, flags);
+            if (previous == null) {
+                seq = append(logRecord(PUT, flags, key, value));
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return previous;
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value, int flags) {
+        long seq = 0;
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            if (memory.replace(key, expected, value, flags)) {
+                seq = append(logRecord(PUT, flags, key, value));
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return seq != 0;
+    }
+
+    @Override
+    public String remove(String key, int flags) {
+        long seq = 0;
+        String previous;
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            previous = memory.remove(key, flags);
+            if (previous != null) {
+                seq = append(logRecord(REMOVE, flags, key, null));
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return previous;
+    }
+
+    private ReentrantLock stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    // Writes a snapshot of the store and deletes the logs it makes redundant
+    void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            // Everything queued before the rotation goes in the old log, and was put in
+            // the store before it was queued, so the snapshot is certain to include it.
+            // Changes made while the snapshot is written may be in both, which is
+            // harmless as replaying them in order gives the same result.
+            long covered = rotate();
+            Path temporary = directory.resolve("snapshot.tmp");
+            writeSnapshot(temporary, covered);
+            Files.move(temporary, file("snapshot-", covered),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Path p : files()) {
+                long g = generationOf(p);
+                if (g >= 0 && g < covered) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // The snapshotter is interrupted first, so a snapshot it is taking gives up quietly
+    // when its rotation is refused, rather than logging an error
+    @Override
+    public void close() throws IOException {
+        snapshotter.interrupt();
+        queueLock.lock();
+        try {
+            closing = true;
+            queued.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        try {
+            writer.join();
+            snapshotter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Queues a log record and returns its sequence number
+    private long append(byte[] record) {
+        queueLock.lock();
+        try {
+            if (closing) {
+                throw new IllegalStateException("The store is closed");
+            }
+            queue.add(record);
+            queued.signal();
+            return ++queuedSeq;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // Waits until the record with this sequence number has been fsynced; 0 means there is no record
+    private void awaitDurable(long seq) {
+        if (seq == 0) {
+            return;
+        }
+        queueLock.lock();
+        try {
+            while (durableSeq < seq && failure == null) {
+                written.awaitUninterruptibly();
+            }
+            if (durableSeq < seq) {
+                throw new UncheckedIOException("The write log has failed", failure);
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // Has the writer start a new log and returns its generation.  Fails if the store
+    // is closed before the writer gets to it.
+    private long rotate() throws IOException {
+        queueLock.lock();
+        try {
+            if (closing) {
+                throw new IOException("The store is closed");
+            }
+            long before = rotations;
+            rotateRequested = true;
+            queued.signal();
+            while (rotations == before && failure == null && !closed) {
+                written.awaitUninterruptibly();
+            }
+            if (rotations == before) {
+                throw failure != null ? failure : new IOException("The store is closed");
+            }
+            return generation;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ArrayDeque<byte[]> batch;
+                long batchSeq;
+                boolean rotating;
+                queueLock.lock();
+                try {
+                    while (queue.isEmpty() && !rotateRequested && !closing) {
+                        queued.awaitUninterruptibly();
+                    }
+                    if (queue.isEmpty() && closing) {
+                        // A rotation asked for now would start a log nothing is written to
+                        rotateRequested = false;
+                        closed = true;
+                        written.signalAll();
+                        break;
+                    }
+                    batch = queue;
+                    queue = new ArrayDeque<>();
+                    batchSeq = queuedSeq;
+                    rotating = rotateRequested;
+                } finally {
+                    queueLock.unlock();
+                }
+
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                }
+                if (rotating) {
+                    log.close();
+                    openLog(generation + 1);
+                    logBytes = 0;
+                }
+                queueLock.lock();
+                try {
+                    durableSeq = batchSeq;
+                    if (rotating) {
+                        rotateRequested = false;
+                        rotations++;
+                    }
+                    written.signalAll();
+                } finally {
+                    queueLock.unlock();
+                }
+            }
+            log.close();
+        } catch (IOException e) {
+            queueLock.lock();
+            try {
+                failure = e;
+                written.signalAll();
+            } finally {
+                queueLock.unlock();
+            }
+            Log.error("[DurableStore] Error: ", e.getMessage());
+        }
+    }
+
+    private void writeBatch(ArrayDeque<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+        logBytes += size;
+    }
+
+    private void snapshotLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(SNAPSHOT_CHECK_MS);
+                if (logBytes > snapshotThreshold) {
+                    snapshot();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Interrupted by close, which may have closed the channel being written too
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                Log.error("[DurableStore] Snapshot failed: ", e.getMessage());
+            }
+        }
+    }
+
+    private void openLog(long g) throws IOException {
+        generation = g;
+        log = FileChannel.open(file("log-", g), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        // Make sure the new file's directory entry survives a crash
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // Not every platform can open a directory
+        }
+    }
+
+    // Log records are: length, CRC32 of what follows, op, flags, key, and value for a put.
+    // Keys and values are an int length followed by UTF-8.
+    private static byte[] logRecord(byte op, int flags, String key, String value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int body = 2 + 4 + k.length + (v == null ? 0 : 4 + v.length);
+        ByteBuffer b = ByteBuffer.allocate(8 + body);
+        b.putInt(body).putInt(0).put(op).put((byte) flags);
+        b.putInt(k.length).put(k);
+        if (v != null) {
+            b.putInt(v.length).put(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 8, body);
+        b.putInt(4, (int) crc.getValue());
+        return b.array();
+    }
+
+    private void recover() throws IOException {
+        long snapshotGeneration = -1;
+        long lastLog = -1;
+        List<Long> logs = new ArrayList<>();
+        for (Path p : files()) {
+            String name = p.getFileName().toString();
+            long g = generationOf(p);
+            if (name.startsWith("snapshot-")) {
+                snapshotGeneration = Math.max(snapshotGeneration, g);
+            } else if (name.startsWith("log-")) {
+                logs.add(g);
+            }
+        }
+        if (snapshotGeneration >= 0) {
+            readSnapshot(file("snapshot-", snapshotGeneration));
+        }
+        Collections.sort(logs);
+        for (long g : logs) {
+            Path log = file("log-", g);
+            if (Files.size(log) == 0) {
+                // Left by a restart that wrote nothing
+                Files.delete(log);
+            } else if (g >= snapshotGeneration) {
+                replayLog(log);
+            }
+            lastLog = Math.max(lastLog, g);
+        }
+        // A new log every time, so nothing is ever appended after a torn record
+        openLog(Math.max(lastLog, snapshotGeneration) + 1);
+    }
+
+    private void replayLog(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(channel, 0);
+            CRC32 crc = new CRC32();
+            while (in.ensure(8)) {
+                int body = in.buffer.getInt();
+                int check = in.buffer.getInt();
+                if (body < 6 || !in.ensure(body)) {
+                    break;
+                }
+                ByteBuffer record = in.buffer.slice(in.buffer.position(), body);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != check) {
+                    break;
+                }
+                in.buffer.position(in.buffer.position() + body);
+                byte op = record.get();
+                int flags = record.get();
+                String key = readString(record);
+                if (op == PUT) {
+                    memory.put(key, readString(record), flags);
+                } else {
+                    memory.remove(key, flags);
+                }
+            }
+        }
+    }
+
+    // The header is the magic number, version, the generation it covers up to and the
+    // number of entries.  Each entry is flags, the first 64 bits of the key's hashID, the
+    // key and value lengths, then the key and value, copied straight from the store's slabs.
+    private void writeSnapshot(Path path, long covered) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedWriter out = new MappedWriter(channel);
+            MappedByteBuffer header = out.region;
+            out.region.position(SNAPSHOT_HEADER);
+            long[] count = new long[1];
+            IOException[] failed = new IOException[1];
+            memory.forEachRecord((h0, slab, offset, keyLength, valueLength, flags) -> {
+                if (failed[0] != null) {
+                    return;
+                }
+                try {
+                    out.ensure(17 + keyLength + valueLength);
+                } catch (IOException e) {
+                    failed[0] = e;
+                    return;
+                }
+                out.region.put((byte) flags).putLong(h0).putInt(keyLength).putInt(valueLength)
+                        .put(slab, offset, keyLength + valueLength);
+                count[0]++;
+            });
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+            header.putInt(0, SNAPSHOT_MAGIC).putInt(4, SNAPSHOT_VERSION)
+                    .putLong(8, covered).putLong(16, count[0]);
+            out.finish();
+        }
+    }
+
+    // A quick pass over the entry headers finds where the entries for each segment of the
+    // store start and how many there are, as they are written a segment at a time.  Then
+    // the segments are loaded in parallel into presized tables, each thread taking its own.
+    private void readSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(channel, 0);
+            if (!in.ensure(SNAPSHOT_HEADER) || in.buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            int version = in.buffer.getInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot version " + version + ": " + path);
+            }
+            in.buffer.getLong();
+            long count = in.buffer.getLong();
+
+            // Each run is its start, number of entries and the first entry's h0
+            List<long[]> runs = new ArrayList<>();
+            long[] run = null;
+            for (long i = 0; i < count; i++) {
+                long start = in.offset();
+                if (!in.ensure(17)) {
+                    throw new IOException("Snapshot is truncated: " + path);
+                }
+                in.buffer.get();
+                long h0 = in.buffer.getLong();
+                int keyLength = in.buffer.getInt();
+                int valueLength = in.buffer.getInt();
+                if (keyLength < 0 || valueLength < 0 || !in.ensure(keyLength + valueLength)) {
+                    throw new IOException("Snapshot is truncated: " + path);
+                }
+                in.buffer.position(in.buffer.position() + keyLength + valueLength);
+                if (run == null || CompactStore.segmentOf(h0) != CompactStore.segmentOf(run[2])) {
+                    run = new long[] { start, 0, h0 };
+                    runs.add(run);
+                }
+                run[1]++;
+            }
+            for (long[] r : runs) {
+                memory.presize(r[2], (int) r[1]);
+            }
+            try {
+                runs.parallelStream().forEach(r -> readRun(channel, r[0], r[1]));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private void readRun(FileChannel channel, long start, long entries) {
+        try {
+            MappedReader in = new MappedReader(channel, start);
+            for (long i = 0; i < entries; i++) {
+                in.ensure(17);
+                int flags = in.buffer.get();
+                long h0 = in.buffer.getLong();
+                int keyLength = in.buffer.getInt();
+                int valueLength = in.buffer.getInt();
+                in.ensure(keyLength + valueLength);
+                memory.load(h0, in.buffer, keyLength, valueLength, flags);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readString(ByteBuffer b) {
+        return readBytes(b, b.getInt());
+    }
+
+    private static String readBytes(ByteBuffer b, int length) {
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path file(String prefix, long g) {
+        return directory.resolve(prefix + String.format("%016d", g));
+    }
+
+    private static long generationOf(Path p) {
+        String name = p.getFileName().toString();
+        int dash = name.indexOf('-');
+        try {
+            return dash < 0 ? -1 : Long.parseLong(name.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory)) {
+            for (Path p : dir) {
+                String name = p.getFileName().toString();
+                if (name.startsWith("log-") || name.startsWith("snapshot-")) {
+                    files.add(p);
+                }
+            }
+        }
+        return files;
+    }
+
+    // Reads a file through a mapping of at most 1GB at a time
+    private static final class MappedReader {
+        private static final long WINDOW = 1L << 30;
+        private final FileChannel channel;
+        private final long size;
+        private long base;
+        ByteBuffer buffer;
+
+        MappedReader(FileChannel channel, long start) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.base = start;
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, WINDOW));
+        }
+
+        long offset() {
+            return base + buffer.position();
+        }
+
+        // Makes sure the next n bytes are in the mapping, moving it along if need be
+        boolean ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            long next = base + buffer.position();
+            if (size - next < n) {
+                return false;
+            }
+            base = next;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, Math.max(WINDOW, n)));
+            return true;
+        }
+    }
+
+    // Writes a file through mappings of SNAPSHOT_CHUNK bytes, extending it as it goes
+    private static final class MappedWriter {
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> regions = new ArrayList<>();
+        private long base;
+        MappedByteBuffer region;
+
+        MappedWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.region = map(0, SNAPSHOT_CHUNK);
+        }
+
+        void ensure(int n) throws IOException {
+            if (region.remaining() < n) {
+                base += region.position();
+                region = map(base, Math.max(SNAPSHOT_CHUNK, n));
+            }
+        }
+
+        // Flushes every region to disk and trims the file to what was written
+        void finish() throws IOException {
+            long end = base + region.position();
+            for (MappedByteBuffer r : regions) {
+                r.force();
+            }
+            channel.truncate(end);
+            channel.force(true);
+        }
+
+        private MappedByteBuffer map(long position, int length) throws IOException {
+            MappedByteBuffer r = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+            regions.add(r);
+            return r;
+        }
+    }
+}
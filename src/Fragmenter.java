@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+// Wraps a node's transport so a message too big for one datagram, such as a write or
+// read response with a large value, is sent as numbered fragments instead:
+//
+//     txid P opcode seq count bytes
+//
+// where txid and opcode are those of the message, seq counts from 0 up to count - 1,
+// and bytes is that part of the message, FRAGMENT_BYTES of it in all but the last.
+// The receiving node puts them back together with a Reassembler and asks for any it
+// is missing with
+//
+//     txid M opcode seq seq ...
+//
+// so only lost fragments are sent again.  Fragments are kept for a while after the
+// message is sent for that, within a limit on the bytes held.  When the same message
+// is sent again, e.g. by a Retransmitter, only its last fragment is resent, which
+// prompts the receiver to ask for whatever else it hasn't got.
+//
+// A datagram is never bigger than BufferPool.BUFFER_SIZE, which every node receives
+// into and is well inside the UDP payload of a 1500 byte Ethernet frame, so no
+// fragment is itself fragmented by IP.  Nodes that don't know P and M ignore them.
+class Fragmenter implements Transport {
+
+    static final int MAX_DATAGRAM = BufferPool.BUFFER_SIZE;
+
+    // Room for "txid P opcode seq count " with five digit numbers, and some to spare
+    static final int FRAGMENT_BYTES = MAX_DATAGRAM - 24;
+
+    // The biggest message that is sent at all, whatever its fragments
+    static final int MAX_MESSAGE_BYTES = 8 << 20;
+
+    // How many missing fragments one M message lists
+    static final int MAX_MISSING_LISTED = 128;
+
+    static final long DEFAULT_EXPIRY_MS = 10_000;
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private final Transport transport;
+    private final long expiryMs;
+    private final long maxBytes;
+    // Messages sent in fragments, oldest first
+    private final LinkedHashMap<Key, Outgoing> sent = new LinkedHashMap<>();
+    private long bytesHeld;
+    private final LongAdder fragmentsResent = new LongAdder();
+
+    Fragmenter(Transport transport) {
+        this(transport, DEFAULT_EXPIRY_MS, DEFAULT_MAX_BYTES);
+    }
+
+    Fragmenter(Transport transport, long expiryMs, long maxBytes) {
+        this.transport = transport;
+        this.expiryMs = expiryMs;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public ByteBuffer acquire() {
+        return transport.acquire();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        transport.release(buffer);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        if (data.remaining() <= MAX_DATAGRAM) {
+            transport.send(data, destination);
+            return;
+        }
+        if (data.remaining() > MAX_MESSAGE_BYTES) {
+            throw new IOException("Message of " + data.remaining() + " bytes is too big to send");
+        }
+        byte[] message = new byte[data.remaining()];
+        data.get(data.position(), message);
+        // Bytes 0 and 1 are the transaction ID and byte 3 the opcode
+        Key key = new Key(destination, ((message[0] & 0xFF) << 8) | (message[1] & 0xFF), (char) (message[3] & 0xFF));
+        Outgoing outgoing = new Outgoing(message, System.currentTimeMillis());
+        Outgoing earlier;
+        synchronized (this) {
+            expire(outgoing.created);
+            earlier = sent.get(key);
+            if (earlier == null || !Arrays.equals(earlier.message, message)) {
+                if (earlier != null) {
+                    sent.remove(key);
+                    bytesHeld -= earlier.message.length;
+                    earlier = null;
+                }
+                sent.put(key, outgoing);
+                bytesHeld += message.length;
+                trim();
+            }
+        }
+        if (earlier != null) {
+            // The receiver has most of it or will ask for the rest
+            fragmentsResent.increment();
+            sendFragment(key, earlier, earlier.count - 1);
+            return;
+        }
+        for (int seq = 0; seq < outgoing.count; seq++) {
+            sendFragment(key, outgoing, seq);
+        }
+    }
+
+    // Sends the fragments an M message from destination lists, if the message is still held
+    void resend(CRNReader in, int txid, InetSocketAddress destination) throws IOException {
+        char opcode = in.nextChar();
+        Outgoing outgoing;
+        synchronized (this) {
+            outgoing = sent.get(new Key(destination, txid, opcode));
+        }
+        if (outgoing == null) {
+            return;
+        }
+        int seq;
+        while ((seq = in.nextInt()) >= 0) {
+            if (seq < outgoing.count) {
+                fragmentsResent.increment();
+                sendFragment(new Key(destination, txid, opcode), outgoing, seq);
+            }
+        }
+    }
+
+    long fragmentsResent() {
+        return fragmentsResent.sum();
+    }
+
+    synchronized long bytesHeld() {
+        return bytesHeld;
+    }
+
+    @Override
+    public int localPort() {
+        return transport.localPort();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            sent.clear();
+            bytesHeld = 0;
+        }
+        transport.close();
+    }
+
+    private void sendFragment(Key key, Outgoing outgoing, int seq) throws IOException {
+        ByteBuffer buffer = transport.acquire();
+        try {
+            int start = seq * FRAGMENT_BYTES;
+            int length = Math.min(FRAGMENT_BYTES, outgoing.message.length - start);
+            new CRNWriter().reset(buffer).header(key.txid, 'P').character(key.opcode)
+                    .decimal(seq).decimal(outgoing.count)
+                    .tail(ByteBuffer.wrap(outgoing.message), start, length).finish();
+            transport.send(buffer, key.destination);
+        } finally {
+            transport.release(buffer);
+        }
+    }
+
+    // Entries are kept in the order they were added, so the expired ones are at the front
+    private void expire(long now) {
+        Iterator<Outgoing> i = sent.values().iterator();
+        while (i.hasNext()) {
+            Outgoing outgoing = i.next();
+            if (now - outgoing.created <= expiryMs) {
+                break;
+            }
+            bytesHeld -= outgoing.message.length;
+            i.remove();
+        }
+    }
+
+    // Drops the oldest messages until what is held is within the limit, keeping the newest
+    private void trim() {
+        Iterator<Outgoing> i = sent.values().iterator();
+        while (bytesHeld > maxBytes && sent.size() > 1 && i.hasNext()) {
+            bytesHeld -= i.next().message.length;
+            i.remove();
+        }
+    }
+
+    private static final class Outgoing {
+        final byte[] message;
+        final int count;
+        final long created;
+
+        Outgoing(byte[] message, long created) {
+            this.message = message;
+            this.count = (message.length + FRAGMENT_BYTES - 1) / FRAGMENT_BYTES;
+            this.created = created;
+        }
+    }
+
+    // Fragments are told apart by who they go to, the transaction ID and the opcode, as a
+    // request and its response share a transaction ID but never an opcode
+    static final class Key {
+        final InetSocketAddress destination;
+        final int txid;
+        final char opcode;
+
+        Key(InetSocketAddress destination, int txid, char opcode) {
+            this.destination = destination;
+            this.txid = txid;
+            this.opcode = opcode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return txid == k.txid && opcode == k.opcode && destination.equals(k.destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(destination, txid, opcode);
+        }
+    }
+}
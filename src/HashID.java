@@ -3,15 +3,207 @@
 //
 // Construct the hashID for a string
 
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 
 public class HashID {
 
     public static byte [] computeHashID(String s) throws Exception {
 	// What this does and how it works is covered in a later lecture
-	MessageDigest md = MessageDigest.getInstance("SHA-256");
-	md.update(s.getBytes(StandardCharsets.UTF_8));
-	return md.digest();
+	return of(s).toBytes();
+    }
+
+    // The distance between two hashIDs is 256 minus the number of
+    // leading bits they have in common, so identical hashIDs are 0 apart
+    public static int distance(byte [] a, byte [] b) {
+	for (int i = 0; i < a.length; i++) {
+	    int diff = (a[i] ^ b[i]) & 0xFF;
+	    if (diff != 0) {
+		return 256 - (i * 8 + Integer.numberOfLeadingZeros(diff) - 24);
+	    }
+	}
+	return 0;
+    }
+
+    // Routing looks up a hashID on every request, so the rest of this class
+    // avoids allocating once a key has been seen: each thread reuses its own
+    // digest and buffers, recent results are cached, and a hashID is held
+    // as four longs so comparisons are a handful of XORs.
+
+    private static final int CACHE_SIZE = 4096;
+
+    // Direct mapped by String.hashCode.  Entries are immutable, so a racing
+    // reader sees either the old entry or the new one, never half of each.
+    private static final CacheEntry [] cache = new CacheEntry[CACHE_SIZE];
+
+    private static final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+
+    private static final char [] HEX = "0123456789abcdef".toCharArray();
+
+    // Most significant bits first
+    final long h0, h1, h2, h3;
+
+    HashID(long h0, long h1, long h2, long h3) {
+	this.h0 = h0;
+	this.h1 = h1;
+	this.h2 = h2;
+	this.h3 = h3;
+    }
+
+    // The hashID of a key, from the cache when it has been seen recently
+    public static HashID of(String key) {
+	int slot = key.hashCode() & (CACHE_SIZE - 1);
+	CacheEntry entry = cache[slot];
+	if (entry != null && entry.key.equals(key)) {
+	    return entry.hashID;
+	}
+	HashID hashID = hashers.get().hash(key);
+	cache[slot] = new CacheEntry(key, hashID);
+	return hashID;
+    }
+
+    public static HashID fromBytes(byte [] b) {
+	return new HashID(longAt(b, 0), longAt(b, 8), longAt(b, 16), longAt(b, 24));
+    }
+
+    public byte [] toBytes() {
+	byte [] b = new byte[32];
+	putLong(b, 0, h0);
+	putLong(b, 8, h1);
+	putLong(b, 16, h2);
+	putLong(b, 24, h3);
+	return b;
+    }
+
+    // Same metric as distance(byte [], byte [])
+    public int distance(HashID other) {
+	long x;
+	if ((x = h0 ^ other.h0) != 0) return 256 - Long.numberOfLeadingZeros(x);
+	if ((x = h1 ^ other.h1) != 0) return 192 - Long.numberOfLeadingZeros(x);
+	if ((x = h2 ^ other.h2) != 0) return 128 - Long.numberOfLeadingZeros(x);
+	if ((x = h3 ^ other.h3) != 0) return 64 - Long.numberOfLeadingZeros(x);
+	return 0;
+    }
+
+    // Orders a and b by how close they are to this hashID.  This agrees with
+    // distance() but also breaks ties, by comparing the bits after the common prefix
+    public int compareDistance(HashID a, HashID b) {
+	int c;
+	if ((c = Long.compareUnsigned(a.h0 ^ h0, b.h0 ^ h0)) != 0) return c;
+	if ((c = Long.compareUnsigned(a.h1 ^ h1, b.h1 ^ h1)) != 0) return c;
+	if ((c = Long.compareUnsigned(a.h2 ^ h2, b.h2 ^ h2)) != 0) return c;
+	return Long.compareUnsigned(a.h3 ^ h3, b.h3 ^ h3);
+    }
+
+    // The 64 hex digit form used in nearest (N) requests
+    public String toHex() {
+	char [] c = new char[64];
+	long [] words = { h0, h1, h2, h3 };
+	for (int i = 0; i < 64; i++) {
+	    c[i] = HEX[(int) (words[i / 16] >>> (60 - 4 * (i % 16))) & 0xF];
+	}
+	return new String(c);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+	if (!(o instanceof HashID)) {
+	    return false;
+	}
+	HashID h = (HashID) o;
+	return h0 == h.h0 && h1 == h.h1 && h2 == h.h2 && h3 == h.h3;
+    }
+
+    @Override
+    public int hashCode() {
+	// SHA-256 output is already uniformly distributed
+	return (int) h0;
+    }
+
+    @Override
+    public String toString() {
+	return toHex();
+    }
+
+    static long longAt(byte [] b, int offset) {
+	long v = 0;
+	for (int i = 0; i < 8; i++) {
+	    v = (v << 8) | (b[offset + i] & 0xFF);
+	}
+	return v;
+    }
+
+    private static void putLong(byte [] b, int offset, long v) {
+	for (int i = 7; i >= 0; i--) {
+	    b[offset + i] = (byte) v;
+	    v >>>= 8;
+	}
+    }
+
+    private static final class CacheEntry {
+	final String key;
+	final HashID hashID;
+
+	CacheEntry(String key, HashID hashID) {
+	    this.key = key;
+	    this.hashID = hashID;
+	}
+    }
+
+    // A digest plus the buffers to feed it, one per thread
+    private static final class Hasher {
+	private final MessageDigest md;
+	private final byte [] digest = new byte[32];
+	private byte [] input = new byte[256];
+
+	Hasher() {
+	    try {
+		md = MessageDigest.getInstance("SHA-256");
+	    } catch (Exception e) {
+		throw new IllegalStateException("SHA-256 not available", e);
+	    }
+	}
+
+	HashID hash(String key) {
+	    int length = encode(key);
+	    md.update(input, 0, length);
+	    try {
+		md.digest(digest, 0, digest.length);
+	    } catch (Exception e) {
+		throw new IllegalStateException(e);
+	    }
+	    return fromBytes(digest);
+	}
+
+	// UTF-8 encodes the key into the reusable input buffer
+	private int encode(String key) {
+	    if (input.length < key.length() * 3) {
+		input = new byte[key.length() * 3];
+	    }
+	    int p = 0;
+	    for (int i = 0; i < key.length(); i++) {
+		char c = key.charAt(i);
+		if (c < 0x80) {
+		    input[p++] = (byte) c;
+		} else if (c < 0x800) {
+		    input[p++] = (byte) (0xC0 | (c >> 6));
+		    input[p++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && i + 1 < key.length()
+			   && Character.isLowSurrogate(key.charAt(i + 1))) {
+		    int cp = Character.toCodePoint(c, key.charAt(++i));
+		    input[p++] = (byte) (0xF0 | (cp >> 18));
+		    input[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		    input[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		    input[p++] = (byte) (0x80 | (cp & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+		    // Unpaired surrogates encode as '?', the same as String.getBytes
+		    input[p++] = (byte) '?';
+		} else {
+		    input[p++] = (byte) (0xE0 | (c >> 12));
+		    input[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		    input[p++] = (byte) (0x80 | (c & 0x3F));
+		}
+	    }
+	    return p;
+	}
     }
 }
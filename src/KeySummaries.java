@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends a summary of the keys this node holds to the nodes in its routing table, and to
+// those that have lately searched through it or asked it for a key, and keeps theirs, so
+// exists and read can skip replicas that certainly don't have a key.  The replicas a
+// search finds for a key are seldom in the asking node's routing table, but the search
+// has just asked each of them for nearest nodes, and a node that hasn't been sent the
+// summary is sent it as soon as it asks.  Most of the time it arrives before the search
+// is over, so a key that isn't anywhere usually costs just the search.  A summary that
+// comes too late, or a false positive, means asking that replica as before; in a 50 node
+// network about one lookup in a hundred still asks, more in larger ones, where searches
+// ask more nodes than MAX_ASKERS lets each node send to.
+//
+// The summary is the CountingBloomFilter a SummarizedStore keeps.  A peer is sent the
+// whole filter once, which comes in fragments:
+//
+//     txid B 0 to lease bits
+//
+// and after that what has changed since the version it was last sent, MAX_DELTA changes
+// to a datagram:
+//
+//     txid B from to n n ...      each n a position times two, plus one if it is set
+//
+// Changes are sent every interval, and as soon as a key is added, so a key written to
+// a node is usually in the other nodes' copies before a reader has finished the search
+// that finds the node.  Every RENEW_EVERY intervals a peer still in the routing table,
+// or still asking, is told the version it has been sent, which renews its lease:
+//
+//     txid B to to lease
+//
+// The whole filter is only sent again when the change log no longer goes back to the
+// version a peer was last sent, as after the filter is rebuilt at another size, or when
+// the peer asks for it, at most once an interval, because its copy is missing or behind:
+//
+//     txid B 0 0
+//
+// A copy is only used for lease milliseconds after its full filter or last renewal
+// arrives.  The sender goes on sending changes for an interval longer than that, even to
+// a node it no longer has any other reason to send to, so a copy doesn't miss a change
+// while it is used.  A copy only takes a delta, or a renewal, for its own version.  One
+// that doesn't match, because an earlier delta was lost or overtaken, leaves it unused
+// until the full filter it then asks for comes, so a lost delta means asking that node
+// as before rather than wrongly skipping it.  A full filter older than what has been
+// heard, as can happen when its fragments take longer than a later delta, is ignored.
+// Each copy takes its filter's size / 8 bytes, and at most MAX_PEERS copies and
+// MAX_COPY_BYTES are kept; a node with no room for another copy doesn't ask for one.
+//
+// A copy still lags its node by a network delay or so, so, as with the read cache, a key
+// another node wrote moments ago may not be found.  Keys this node writes to a peer are
+// added to its copy straight away.
+class KeySummaries {
+
+    static final long DEFAULT_INTERVAL_MS = 1000;
+    private static final int RENEW_EVERY = 10;
+    // How many intervals a lease lasts, so one renewal that is lost can be done without
+    private static final int LEASE_INTERVALS = RENEW_EVERY * 2;
+    // As many changes as fit in a datagram
+    private static final int MAX_DELTA = 128;
+    // Copies from more nodes than this aren't kept
+    private static final int MAX_PEERS = 1024;
+    // Nor more than this many bytes of them
+    private static final long MAX_COPY_BYTES = 64L << 20;
+    // Nodes outside the routing table sent the summary because they asked for a key
+    private static final int MAX_ASKERS = 64;
+
+    // One thread sends the summaries for every node in the JVM
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CRN-summaries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Node node;
+    private final CountingBloomFilter local;
+    private final long intervalMs;
+    private final Map<InetSocketAddress, Copy> copies = new ConcurrentHashMap<>();
+    // The peers this node's filter is sent to; only changed on the scheduler thread
+    private final Map<InetSocketAddress, Sent> sent = new ConcurrentHashMap<>();
+    // When each node last asked this one for a key
+    private final Map<InetSocketAddress, Long> askers = new ConcurrentHashMap<>();
+    // When this node last asked each peer for its whole filter
+    private final Map<InetSocketAddress, Long> fullsAsked = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTxid = new AtomicInteger(ThreadLocalRandom.current().nextInt(0x10000));
+    private final AtomicBoolean pushPending = new AtomicBoolean();
+    private final LongAdder skipped = new LongAdder();
+    // The bytes all the copies take
+    private final AtomicLong copyBytes = new AtomicLong();
+    private int rounds;
+    private volatile ScheduledFuture<?> schedule;
+
+    KeySummaries(Node node, CountingBloomFilter local, long intervalMs) {
+        this.node = node;
+        this.local = local;
+        this.intervalMs = intervalMs;
+    }
+
+    // The first round starts at a random point, so nodes started together don't send together
+    synchronized void start() {
+        if (schedule == null) {
+            long jitter = ThreadLocalRandom.current().nextLong(intervalMs);
+            schedule = scheduler.scheduleWithFixedDelay(this::round, jitter, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel(false);
+            schedule = null;
+        }
+    }
+
+    // The peers that may hold key: those whose copy says it may, and those without a usable copy
+    List<InetSocketAddress> mayHold(List<InetSocketAddress> peers, String key) {
+        List<InetSocketAddress> candidates = new ArrayList<>(peers.size());
+        long now = System.currentTimeMillis();
+        for (InetSocketAddress peer : peers) {
+            Copy copy = copies.get(peer);
+            if (copy == null || copy.mightContain(key, now)) {
+                candidates.add(peer);
+            } else {
+                skipped.increment();
+            }
+        }
+        return candidates;
+    }
+
+    // This node has just sent peer the key, so its copy shouldn't rule the key out
+    void wrote(InetSocketAddress peer, String key) {
+        Copy copy = copies.get(peer);
+        if (copy != null) {
+            copy.add(key);
+        }
+    }
+
+    // A key has been added to this node's filter.  Keys added before the changes are sent go together.
+    void added() {
+        if (schedule != null && pushPending.compareAndSet(false, true)) {
+            scheduler.execute(this::push);
+        }
+    }
+
+    // peer has searched through this node or asked it for a key, so it is sent the summary
+    // for a while.  A new one is sent it at once, as it may be about to ask for a key.
+    void askedBy(InetSocketAddress peer) {
+        if (askers.size() < MAX_ASKERS || askers.containsKey(peer)) {
+            if (askers.put(peer, System.currentTimeMillis()) == null && schedule != null) {
+                scheduler.execute(() -> {
+                    if (!sent.containsKey(peer)) {
+                        sendFull(peer, System.currentTimeMillis());
+                    }
+                });
+            }
+        }
+    }
+
+    // in is positioned after the B
+    void receive(CRNReader in, InetSocketAddress sender) {
+        int from = in.nextInt();
+        int to = in.nextInt();
+        if (from < 0 || to < 0) {
+            return;
+        }
+        if (from == 0 && to == 0) {
+            fullWanted(sender);
+            return;
+        }
+        if (from == 0) {
+            int lease = in.nextInt();
+            if (lease < 0 || !in.nextTail() || !CountingBloomFilter.validSize(in.fieldLength() * 8L)) {
+                return;
+            }
+            if (!copies.containsKey(sender) && (copies.size() >= MAX_PEERS || copyBytes.get() + in.fieldLength() > MAX_COPY_BYTES)) {
+                return;
+            }
+            byte[] bits = new byte[in.fieldLength()];
+            in.buffer().get(in.fieldStart(), bits);
+            long leaseUntil = System.currentTimeMillis() + lease;
+            copies.compute(sender, (peer, copy) -> {
+                if (copy != null && copy.newerThan(to)) {
+                    return copy;
+                }
+                copyBytes.addAndGet(bits.length - (copy == null ? 0 : copy.bits.length));
+                return new Copy(bits, to, leaseUntil);
+            });
+            return;
+        }
+        Copy copy = copies.get(sender);
+        boolean current;
+        if (from == to) {
+            int lease = in.nextInt();
+            if (lease < 0) {
+                return;
+            }
+            current = copy != null && copy.renew(to, System.currentTimeMillis() + lease);
+        } else {
+            current = copy != null && copy.apply(in, from, to);
+        }
+        if (!current) {
+            askForFull(sender);
+        }
+    }
+
+    // How many times a peer wasn't asked for a key because its copy ruled it out
+    long skippedCount() {
+        return skipped.sum();
+    }
+
+    int copyCount() {
+        return copies.size();
+    }
+
+    private void round() {
+        RoutingTable routing = node.routing();
+        long now = System.currentTimeMillis();
+        askers.values().removeIf(asked -> now - asked > intervalMs * LEASE_INTERVALS);
+        fullsAsked.values().removeIf(asked -> now - asked >= intervalMs);
+        // Peers whose lease isn't renewed any more are sent changes until it is up
+        sent.values().removeIf(last -> last.until < now);
+        for (Map.Entry<InetSocketAddress, Copy> entry : copies.entrySet()) {
+            Copy copy = entry.getValue();
+            if (copy.expired(now) && copies.remove(entry.getKey(), copy)) {
+                copyBytes.addAndGet(-copy.bits.length);
+            }
+        }
+        sendChanges();
+        HashSet<InetSocketAddress> peers = new HashSet<>(routing.addresses());
+        peers.addAll(askers.keySet());
+        boolean renew = rounds++ % RENEW_EVERY == 0;
+        for (InetSocketAddress peer : peers) {
+            Sent last = sent.get(peer);
+            if (last == null) {
+                sendFull(peer, now);
+            } else if (renew) {
+                int lease = lease();
+                if (send(peer, out -> out.decimal(last.version).decimal(last.version).decimal(lease))) {
+                    last.until = now + lease + intervalMs;
+                }
+            }
+        }
+    }
+
+    private void push() {
+        pushPending.set(false);
+        sendChanges();
+    }
+
+    // Sends each peer what has changed since it was last sent, or the whole filter if the
+    // change log doesn't go back that far
+    private void sendChanges() {
+        long now = System.currentTimeMillis();
+        int version = local.version();
+        for (Map.Entry<InetSocketAddress, Sent> entry : sent.entrySet()) {
+            Sent last = entry.getValue();
+            if (last.version == version) {
+                continue;
+            }
+            int[] changes = local.changesSince(last.version, version);
+            if (changes == null) {
+                sendFull(entry.getKey(), now);
+                continue;
+            }
+            // The i'th change takes the filter from version base + i to the next
+            int base = last.version;
+            for (int start = 0; start < changes.length; start += MAX_DELTA) {
+                int first = start;
+                int end = Math.min(start + MAX_DELTA, changes.length);
+                if (!send(entry.getKey(), out -> encodeDelta(out, base + first, base + end, changes, first, end))) {
+                    break;
+                }
+                last.version = base + end;
+            }
+        }
+    }
+
+    // The bits may be newer than version; a delta from version sets them again, which does
+    // no harm
+    private void sendFull(InetSocketAddress peer, long now) {
+        int version = local.version();
+        byte[] bits = local.bits();
+        int lease = lease();
+        if (send(peer, out -> out.decimal(0).decimal(version).decimal(lease).tail(ByteBuffer.wrap(bits), 0, bits.length))) {
+            sent.put(peer, new Sent(version, now + lease + intervalMs, now));
+        }
+    }
+
+    // peer's copy is missing or behind.  A full filter sent it in the last interval may
+    // still be on its way, so it isn't sent another.
+    private void fullWanted(InetSocketAddress peer) {
+        if (schedule == null) {
+            return;
+        }
+        scheduler.execute(() -> {
+            Sent last = sent.get(peer);
+            long now = System.currentTimeMillis();
+            if (last != null && now - last.fullAt >= intervalMs) {
+                sendFull(peer, now);
+            }
+        });
+    }
+
+    // This node's copy of peer's filter is missing or behind, so it asks for the whole
+    // filter, at most once an interval, if it has room to keep it
+    private void askForFull(InetSocketAddress peer) {
+        if (!copies.containsKey(peer) && (copies.size() >= MAX_PEERS || copyBytes.get() >= MAX_COPY_BYTES)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long asked = fullsAsked.get(peer);
+        if (asked != null && now - asked < intervalMs) {
+            return;
+        }
+        fullsAsked.put(peer, now);
+        send(peer, out -> out.decimal(0).decimal(0));
+    }
+
+    // An interval short of how long changes are sent, for delays
+    private int lease() {
+        return (int) Math.min(intervalMs * (LEASE_INTERVALS - 1), Integer.MAX_VALUE);
+    }
+
+    private static void encodeDelta(CRNWriter out, int from, int to, int[] changes, int start, int end) {
+        out.decimal(from).decimal(to);
+        for (int i = start; i < end; i++) {
+            out.decimal(changes[i]);
+        }
+    }
+
+    // Returns false if it wasn't sent
+    private boolean send(InetSocketAddress peer, Node.RequestBody body) {
+        Transport transport = node.transport();
+        if (transport == null || !transport.isOpen()) {
+            return false;
+        }
+        ByteBuffer buffer = transport.acquire();
+        try {
+            CRNWriter out = new CRNWriter().reset(buffer).header(txid(), 'B');
+            body.encode(out);
+            transport.send(out.finish(), peer);
+            return true;
+        } catch (IOException e) {
+            Log.debug("[summaries] Error: ", e.getMessage());
+            return false;
+        } finally {
+            transport.release(buffer);
+        }
+    }
+
+    // A new one each time, as a full filter is sent in fragments, which are told apart by it
+    private int txid() {
+        while (true) {
+            int txid = nextTxid.getAndIncrement() & 0xFFFF;
+            if ((txid >>> 8) != ' ' && (txid & 0xFF) != ' ') {
+                return txid;
+            }
+        }
+    }
+
+    // The version a peer was last sent, until when it is sent changes, and when it was
+    // last sent the whole filter
+    private static final class Sent {
+        int version;
+        long until;
+        final long fullAt;
+
+        Sent(int version, long until, long fullAt) {
+            this.version = version;
+            this.until = until;
+            this.fullAt = fullAt;
+        }
+    }
+
+    // A peer's filter as of the last version it sent
+    private static final class Copy {
+        private final byte[] bits;
+        private volatile long leaseUntil;
+        private int version;
+        // The newest version heard of, and whether the bits are still at it
+        private int newest;
+        private boolean usable = true;
+
+        Copy(byte[] bits, int version, long leaseUntil) {
+            this.bits = bits;
+            this.version = version;
+            this.newest = version;
+            this.leaseUntil = leaseUntil;
+        }
+
+        boolean expired(long now) {
+            return leaseUntil < now;
+        }
+
+        synchronized boolean newerThan(int version) {
+            return newest > version;
+        }
+
+        synchronized boolean mightContain(String key, long now) {
+            return !usable || expired(now) || CountingBloomFilter.mightContain(bits, key);
+        }
+
+        synchronized void add(String key) {
+            CountingBloomFilter.add(bits, key);
+        }
+
+        // A delta that doesn't follow on from this copy, or is for a filter of another size,
+        // leaves it unusable.  Returns whether the copy is still usable.
+        synchronized boolean apply(CRNReader in, int from, int to) {
+            newest = Math.max(newest, to);
+            if (!usable || from != version) {
+                usable = false;
+                return false;
+            }
+            int change;
+            while ((change = in.nextInt()) >= 0) {
+                int p = change >>> 1;
+                if (p >= bits.length * 8) {
+                    usable = false;
+                    return false;
+                }
+                CountingBloomFilter.set(bits, p, (change & 1) != 0);
+            }
+            version = to;
+            return true;
+        }
+
+        // The sender has sent nothing since version.  A copy that isn't there yet has missed
+        // a delta and is left unusable; one already past it has had a delta overtake this.
+        // Returns whether the copy is still usable.
+        synchronized boolean renew(int version, long leaseUntil) {
+            newest = Math.max(newest, version);
+            if (usable && version < this.version) {
+                return true;
+            }
+            if (!usable || version != this.version) {
+                usable = false;
+                return false;
+            }
+            this.leaseUntil = leaseUntil;
+            return true;
+        }
+    }
+}
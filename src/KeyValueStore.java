@@ -0,0 +1,40 @@
+// A node's keys and values.  Each key is held once, with flags saying why this
+// node has it: because it was written here, because this node is one of the
+// closest to it, or both.
+interface KeyValueStore {
+
+    // Written by this node's own write or CAS
+    int LOCAL = 1;
+    // Held for other nodes, as one of the nodes closest to the key
+    int REPLICA = 2;
+
+    // The value, or null if the key isn't held
+    String get(String key);
+
+    // The key's flags, 0 if it isn't held
+    int flags(String key);
+
+    // Sets the value and adds flags to the key's flags; returns the previous value
+    String put(String key, String value, int flags);
+
+    // Only adds the key if it isn't held; returns the value it already has, or null
+    String putIfAbsent(String key, String value, int flags);
+
+    // Sets the value, and adds flags, only if the current value is expected
+    boolean replace(String key, String expected, String value, int flags);
+
+    // Clears flags from the key and drops it once it has none left; returns the value it had
+    String remove(String key, int flags);
+
+    int size();
+
+    // Visits every key
+    void forEach(Visitor visitor);
+
+    // Visits the keys at most maxDistance from target, the same distance as HashID.distance
+    void forEachWithin(HashID target, int maxDistance, Visitor visitor);
+
+    interface Visitor {
+        void visit(String key, String value, int flags);
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts how long things took, in buckets that are about 3% wide at any scale,
+// so percentiles can be read off at any time without keeping every sample.
+// Recording is a couple of atomic increments, allocates nothing and is safe from
+// any thread.
+class LatencyHistogram {
+
+    // By default each power of two is split into 2^5 buckets
+    static final int DEFAULT_SUB_BITS = 5;
+
+    private final int subBits;
+    private final int subCount;
+    // Values are counted in units of 2^shift nanoseconds
+    private final int shift;
+    private final int lastIndex;
+    private final AtomicLongArray counts;
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+        this(DEFAULT_SUB_BITS, 0, Long.MAX_VALUE);
+    }
+
+    // For when there are many histograms: fewer sub bits makes the buckets wider,
+    // counting in units of 2^shift nanoseconds drops the buckets below one unit, and
+    // anything over maxNanos goes in the last bucket.  With 2 sub bits, microseconds
+    // and up to a few seconds, buckets are up to 25% wide and there are 84 of them.
+    LatencyHistogram(int subBits, int shift, long maxNanos) {
+        this.subBits = subBits;
+        this.subCount = 1 << subBits;
+        this.shift = shift;
+        this.lastIndex = index(maxNanos >>> shift);
+        this.counts = new AtomicLongArray(lastIndex + 1);
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(Math.min(index(nanos >>> shift), lastIndex));
+        total.increment();
+        sum.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    double meanNanos() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value at or below which the fraction p (0 to 1) of the samples fall,
+    // to within a bucket's width
+    long percentileNanos(double p) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(((highestIn(i) + 1) << shift) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private int index(long v) {
+        if (v < subCount) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exponent - subBits)) & (subCount - 1);
+        return (exponent - subBits + 1) * subCount + sub;
+    }
+
+    private long highestIn(int index) {
+        if (index < subCount) {
+            return index;
+        }
+        int exponent = index / subCount + subBits - 1;
+        long sub = index % subCount;
+        long lowest = (1L << exponent) | (sub << (exponent - subBits));
+        return lowest + (1L << (exponent - subBits)) - 1;
+    }
+}
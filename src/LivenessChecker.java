@@ -0,0 +1,81 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Keeps track of which nodes in the routing table are up, in the background, so
+// isActive can answer from what is already known rather than waiting on the network.
+//
+// Every interval each address that hasn't been heard from during it is sent a
+// name request (G).  The requests don't wait on each other, and each is sent at
+// a random point in the interval so the whole table isn't probed in one burst.
+// Anything received from a node counts as hearing from it, so nodes that are
+// talking to us anyway are never probed.
+class LivenessChecker {
+
+    static final long DEFAULT_INTERVAL_MS = 5000;
+    // A node not heard from for this many intervals is taken to be down
+    private static final int INTERVALS_BEFORE_STALE = 3;
+
+    // One thread does the scheduling for every node in the JVM; the probes themselves don't block
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CRN-liveness");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Node node;
+    private final long intervalMs;
+    private volatile ScheduledFuture<?> rounds;
+
+    LivenessChecker(Node node, long intervalMs) {
+        this.node = node;
+        this.intervalMs = intervalMs;
+    }
+
+    // The first round starts at a random point, so nodes started together don't probe together
+    synchronized void start() {
+        if (rounds == null) {
+            rounds = scheduler.scheduleWithFixedDelay(this::round, jitter(), intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (rounds != null) {
+            rounds.cancel(false);
+            rounds = null;
+        }
+    }
+
+    long staleAfterMs() {
+        return intervalMs * INTERVALS_BEFORE_STALE;
+    }
+
+    private void round() {
+        RoutingTable routing = node.routing();
+        for (InetSocketAddress peer : routing.addresses()) {
+            if (routing.heardAgoMs(peer) >= intervalMs) {
+                scheduler.schedule(() -> probe(peer), jitter(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // The H response is recorded as hearing from the peer when it arrives, and the
+    // name in it turns an address we only had as a seed into a named node
+    private void probe(InetSocketAddress peer) {
+        if (rounds == null || node.routing().heardAgoMs(peer) < intervalMs) {
+            return;
+        }
+        try {
+            node.requestName(peer);
+        } catch (Exception e) {
+            Log.error("[liveness] Error: ", e.getMessage());
+        }
+    }
+
+    private long jitter() {
+        return ThreadLocalRandom.current().nextLong(intervalMs);
+    }
+}
@@ -0,0 +1,276 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Puts a mixed load of reads, writes, exists and CAS on a large network of
+// nodes, all in this JVM on a SimulatedNetwork, and reports the throughput and
+// the latency percentiles of each kind of operation.  Then it times many
+// clients updating one counter, and a batch of reads with readAll against the
+// same reads one at a time.  No sockets are used, so any number of nodes can be
+// run on one machine.
+//
+// java LoadGenerator [nodes] [operations] [clients] [latency us] [jitter us] [loss] [reorder] [seed]
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGenerator {
+
+    // Out of 100
+    private static final int READS = 60;
+    private static final int WRITES = 20;
+    private static final int EXISTS = 15;
+
+    private static final int KEYS = 1000;
+    // Each client adds this many to one counter key at the end
+    private static final int INCREMENTS = 5;
+    private static final String COUNTER = "D:load-counter";
+    // How many keys runBatch reads
+    private static final int BATCH = 50;
+
+    private final SimulatedNetwork network;
+    private final List<Node> nodes;
+    private final long seed;
+    private final String[] keys = new String[KEYS];
+    private final Operation[] operations = {
+            new Operation("read"), new Operation("write"), new Operation("exists"), new Operation("CAS")
+    };
+
+    LoadGenerator(SimulatedNetwork.Settings settings, int numberOfNodes) throws Exception {
+        network = new SimulatedNetwork(settings);
+        seed = settings.seed;
+        for (int i = 0; i < numberOfNodes; ++i) {
+            network.startNode("N:sim" + i);
+        }
+        nodes = network.nodes();
+
+        // Each node gets its successor and a few random others, as NodeHost does
+        Random r = new Random(seed);
+        int links = 1 + (int) Math.ceil(Math.log(numberOfNodes) / Math.log(2));
+        for (int i = 0; i < numberOfNodes; ++i) {
+            for (int l = 0; l < links; ++l) {
+                int j = l == 0 ? (i + 1) % numberOfNodes : r.nextInt(numberOfNodes);
+                if (j != i) {
+                    nodes.get(i).learnAddress("N:sim" + j, network.addressOf(j));
+                }
+            }
+        }
+        // Then each joins as a real node would, by writing its own address pair.  The search
+        // for its hashID fills its routing table with the nodes around it, and those nodes
+        // learn it from the pair, so searches from elsewhere find it.  Without this a node
+        // few others link to is never found, yet still takes itself for a replica.
+        List<CompletableFuture<Boolean>> joins = new ArrayList<>(numberOfNodes);
+        for (int i = 0; i < numberOfNodes; ++i) {
+            joins.add(nodes.get(i).writeAsync("N:sim" + i, network.addressOf(i)));
+        }
+        CompletableFuture.allOf(joins.toArray(new CompletableFuture<?>[0])).join();
+        // The keys are shared out between nodes at random, and each writes its share with
+        // writeAll, so the load isn't one round trip after another
+        Map<Node, Map<String, String>> shares = new LinkedHashMap<>();
+        for (int i = 0; i < KEYS; ++i) {
+            keys[i] = "D:load" + i;
+            shares.computeIfAbsent(nodes.get(r.nextInt(numberOfNodes)), node -> new LinkedHashMap<>()).put(keys[i], "0");
+        }
+        List<CompletableFuture<?>> loads = new ArrayList<>(shares.size());
+        for (Map.Entry<Node, Map<String, String>> share : shares.entrySet()) {
+            loads.add(share.getKey().writeAll(share.getValue()));
+        }
+        CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Runs the operations from clients threads at once, each picking a node and a key at random
+    void run(int totalOperations, int clients) throws Exception {
+        AtomicLong remaining = new AtomicLong(totalOperations);
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int c = 0; c < clients; ++c) {
+            Random r = new Random(seed + 1 + c);
+            threads.add(Thread.ofVirtual().name("CRN-load-" + c).start(() -> {
+                while (remaining.getAndDecrement() > 0) {
+                    try {
+                        runOne(r);
+                    } catch (Exception e) {
+                        System.err.println("[LoadGenerator] Error: " + e.getMessage());
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void runOne(Random r) throws Exception {
+        Node node = nodes.get(r.nextInt(nodes.size()));
+        String key = keys[r.nextInt(KEYS)];
+        int choice = r.nextInt(100);
+        long start = System.nanoTime();
+        if (choice < READS) {
+            operations[0].done(start, node.read(key) != null);
+        } else if (choice < READS + WRITES) {
+            operations[1].done(start, node.write(key, Integer.toString(r.nextInt(1000))));
+        } else if (choice < READS + WRITES + EXISTS) {
+            operations[2].done(start, node.exists(key));
+        } else {
+            // If the key can't be read, expect the value it was first written with
+            String current = node.read(key);
+            if (current == null) {
+                current = "0";
+            }
+            start = System.nanoTime();
+            operations[3].done(start, node.CAS(key, current, Integer.toString(r.nextInt(1000))));
+        }
+    }
+
+    // Every client increments the same key at once with update, which retries its CAS
+    // until it succeeds; the key should end up at exactly clients * INCREMENTS
+    void runCounter(PrintStream out, int clients) throws Exception {
+        nodes.get(0).write(COUNTER, "0");
+        AtomicLong failed = new AtomicLong();
+        List<Thread> threads = new ArrayList<>(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; ++c) {
+            Node node = nodes.get(c % nodes.size());
+            threads.add(Thread.ofVirtual().name("CRN-counter-" + c).start(() -> {
+                for (int i = 0; i < INCREMENTS; ++i) {
+                    try {
+                        node.update(COUNTER, v -> Long.toString(v == null ? 1 : Long.parseLong(v) + 1)).get();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long expected = (long) clients * INCREMENTS - failed.get();
+        out.printf("counter: %d clients x %d increments in %.1f s, %.0f updates/s, %d gave up; value %s, expected %d%n",
+                clients, INCREMENTS, seconds, clients * INCREMENTS / seconds, failed.get(),
+                nodes.get(nodes.size() - 1).read(COUNTER), expected);
+    }
+
+    // Reads a batch of keys from one node with a single readAll, which looks them all up at
+    // once, and then the same keys one at a time with read, for comparison
+    void runBatch(PrintStream out) throws Exception {
+        Node node = nodes.get(0);
+        List<String> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; ++i) {
+            batch.add(keys[i]);
+        }
+        long start = System.nanoTime();
+        Map<String, String> values = node.readAll(batch).get();
+        double together = (System.nanoTime() - start) / 1e6;
+        long found = values.values().stream().filter(v -> v != null).count();
+
+        start = System.nanoTime();
+        long foundSingly = 0;
+        for (String key : batch) {
+            if (node.read(key) != null) {
+                foundSingly++;
+            }
+        }
+        double singly = (System.nanoTime() - start) / 1e6;
+        out.printf("batch: %d keys with readAll in %.1f ms, %d found; one at a time %.1f ms, %d found%n",
+                BATCH, together, found, singly, foundSingly);
+    }
+
+    void report(PrintStream out, long elapsedNanos, int clients) {
+        long total = 0;
+        for (Operation operation : operations) {
+            total += operation.latency.count();
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.printf("%d nodes, %d operations from %d clients in %.1f s: %.0f operations/s%n",
+                nodes.size(), total, clients, seconds, total / seconds);
+        out.printf("%d datagrams sent, %d dropped%n", network.sentCount(), network.droppedCount());
+        long requests = 0;
+        long timeouts = 0;
+        long retransmissions = 0;
+        for (Node node : nodes) {
+            NodeMetrics metrics = node.metrics();
+            for (char opcode : NodeMetrics.REQUESTS.toCharArray()) {
+                requests += metrics.sentCount(opcode);
+                timeouts += metrics.timedOutCount(opcode);
+            }
+            retransmissions += metrics.retransmissionCount();
+        }
+        out.printf("%d requests between nodes, %d timed out, %d retransmissions%n", requests, timeouts, retransmissions);
+        out.printf("%-8s %8s %8s %9s %9s %9s %9s %9s%n", "", "count", "ok", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : operations) {
+            LatencyHistogram h = operation.latency;
+            out.printf("%-8s %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation.name, h.count(), operation.ok.get(),
+                    h.percentileNanos(0.5) / 1e6, h.percentileNanos(0.9) / 1e6, h.percentileNanos(0.99) / 1e6,
+                    h.percentileNanos(0.999) / 1e6, h.maxNanos() / 1e6);
+        }
+        // Every key is written before the run and never removed, so a read or exists that
+        // doesn't find one means the network disagrees about where keys live
+        long lookups = operations[0].latency.count() + operations[2].latency.count();
+        long misses = lookups - operations[0].ok.get() - operations[2].ok.get();
+        out.printf("read misses: %d of %d reads and exists, %.2f%%%s%n", misses, lookups,
+                lookups == 0 ? 0.0 : misses * 100.0 / lookups, misses > 0 ? "  <-- should be 0" : "");
+    }
+
+    void shutdown() {
+        network.shutdown();
+    }
+
+    private static final class Operation {
+        final String name;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong ok = new AtomicLong();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void done(long start, boolean succeeded) {
+            latency.record(System.nanoTime() - start);
+            if (succeeded) {
+                ok.incrementAndGet();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            int numberOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+            int totalOperations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+            SimulatedNetwork.Settings settings = new SimulatedNetwork.Settings();
+            if (args.length > 3) settings.latencyMicros = Long.parseLong(args[3]);
+            if (args.length > 4) settings.jitterMicros = Long.parseLong(args[4]);
+            if (args.length > 5) settings.lossRate = Double.parseDouble(args[5]);
+            if (args.length > 6) settings.reorderRate = Double.parseDouble(args[6]);
+            if (args.length > 7) settings.seed = Long.parseLong(args[7]);
+
+            // Each node announces itself; with thousands of them that is just noise
+            PrintStream console = System.out;
+            Log.setLevel(Log.Level.WARN);
+
+            console.println("Starting " + numberOfNodes + " nodes and writing " + KEYS + " keys...");
+            LoadGenerator load = new LoadGenerator(settings, numberOfNodes);
+            console.println("Running " + totalOperations + " operations...");
+            long start = System.nanoTime();
+            load.run(totalOperations, clients);
+            long elapsed = System.nanoTime() - start;
+
+            console.printf("latency %d us, jitter %d us, loss %.1f%%, reordered %.1f%%, seed %d%n",
+                    settings.latencyMicros, settings.jitterMicros, settings.lossRate * 100,
+                    settings.reorderRate * 100, settings.seed);
+            load.report(console, elapsed, clients);
+            load.runCounter(console, clients);
+            load.runBatch(console);
+            load.shutdown();
+        } catch (Exception e) {
+            System.err.println("Exception in LoadGenerator");
+            e.printStackTrace(System.err);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Console logging for the nodes, written out by a background thread so a node
+// never waits on the console.  Messages below the current level are dropped by
+// the caller before anything is built, and the part of a message that varies
+// can be passed separately so it is only turned into a string if it is written.
+//
+// If the console can't keep up the queue fills and further messages are dropped
+// and counted, rather than slowing the node down.  Errors and warnings go to
+// System.err, the rest to System.out.
+final class Log {
+
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int QUEUE_SIZE = 8192;
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "CRN-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued is written before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "CRN-log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    static Level level() {
+        return level;
+    }
+
+    static boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    static long droppedCount() {
+        return dropped.sum();
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    static void debug(String message, Object detail) {
+        log(Level.DEBUG, message, detail);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    static void info(String message, Object detail) {
+        log(Level.INFO, message, detail);
+    }
+
+    static void warn(String message, Object detail) {
+        log(Level.WARN, message, detail);
+    }
+
+    static void error(String message, Object detail) {
+        log(Level.ERROR, message, detail);
+    }
+
+    // detail, if there is one, is appended to message when it is written
+    static void log(Level l, String message, Object detail) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        if (!queue.offer(new Message(l, message, detail))) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            try {
+                write(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        Message message;
+        while ((message = queue.poll()) != null) {
+            write(message);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static void write(Message message) {
+        PrintStream out = message.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        out.println(message.detail == null ? message.text : message.text + message.detail);
+    }
+
+    private static final class Message {
+        final Level level;
+        final String text;
+        final Object detail;
+
+        Message(Level level, String text, Object detail) {
+            this.level = level;
+            this.text = text;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Finds the nodes closest to a hashID by repeatedly sending nearest (N) requests
+// to the closest nodes found so far.  Each O response can only move the search
+// closer, so it converges in O(log n) rounds; up to `parallelism` requests are
+// in flight at once.  The search ends when the closest WIDTH nodes have all
+// answered, and returns the closest RESULTS of them.
+class NearestSearch {
+
+    static final int RESULTS = 3;
+
+    // How many of the closest candidates must have answered before the search stops.
+    // Looking a little wider than RESULTS makes it much more likely that nodes with
+    // different partial views of the network agree on where a key lives.
+    static final int WIDTH = 8;
+
+    private final Node node;
+    private final HashID target;
+    private final int parallelism;
+    private final TreeSet<NodeAddress> candidates;
+    private final Set<NodeAddress> queried = new HashSet<>();
+    private final Set<NodeAddress> failed = new HashSet<>();
+    private final List<InetSocketAddress> unnamedPeers;
+    private final CompletableFuture<List<NodeAddress>> result = new CompletableFuture<>();
+    private int outstanding;
+    // Not synchronized: requests are sent while holding it, which would pin a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // known are the address pairs this node already has, including itself with a null address.
+    // unnamedPeers are neighbours we only have an address for; they are asked in the first round.
+    NearestSearch(Node node, HashID target, int parallelism, List<NodeAddress> known, List<InetSocketAddress> unnamedPeers) {
+        this.node = node;
+        this.target = target;
+        this.parallelism = parallelism;
+        this.candidates = new TreeSet<>(Comparator.comparing((NodeAddress n) -> n.hashID, target::compareDistance)
+                .thenComparing(n -> n.name));
+        this.candidates.addAll(known);
+        for (NodeAddress n : known) {
+            if (n.address == null) {
+                queried.add(n);
+            }
+        }
+        this.unnamedPeers = unnamedPeers;
+    }
+
+    CompletableFuture<List<NodeAddress>> start() {
+        lock.lock();
+        try {
+            outstanding += unnamedPeers.size();
+            for (InetSocketAddress peer : unnamedPeers) {
+                ask(peer, null);
+            }
+            step();
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    // The caller has already counted this request as outstanding.  A response can be
+    // handled before sendRequest even returns, so counting afterwards could let the
+    // search finish while requests it has chosen are still waiting to be sent.
+    private void ask(InetSocketAddress peer, NodeAddress candidate) {
+        CompletableFuture<CRNReader> response;
+        try {
+            response = node.sendRequest(peer, 'N', out -> out.hashID(target));
+        } catch (Exception e) {
+            outstanding--;
+            if (candidate != null) {
+                failed.add(candidate);
+            }
+            return;
+        }
+        response.whenComplete((reply, error) -> onResponse(candidate, reply));
+    }
+
+    // Asks the closest candidates that haven't been asked yet, or finishes the search
+    private void step() {
+        // Chosen first and asked afterwards, as a response can change candidates before ask() returns
+        List<NodeAddress> next = new ArrayList<>();
+        int considered = 0;
+        for (NodeAddress candidate : candidates) {
+            if (outstanding + next.size() >= parallelism || considered >= WIDTH) {
+                break;
+            }
+            if (failed.contains(candidate)) {
+                continue;
+            }
+            considered++;
+            if (queried.add(candidate)) {
+                next.add(candidate);
+            }
+        }
+        outstanding += next.size();
+        for (NodeAddress candidate : next) {
+            ask(candidate.address, candidate);
+        }
+        if (outstanding == 0 && !result.isDone()) {
+            result.complete(closest());
+        }
+    }
+
+    private void onResponse(NodeAddress candidate, CRNReader reply) {
+        lock.lock();
+        try {
+            outstanding--;
+            if (reply == null || reply.opcode() != 'O') {
+                if (candidate != null) {
+                    failed.add(candidate);
+                }
+            } else {
+                String name;
+                while ((name = reply.nextStringValue()) != null) {
+                    String address = reply.nextStringValue();
+                    NodeAddress found = node.learnAddress(name, address);
+                    if (found != null) {
+                        candidates.add(found);
+                    }
+                }
+            }
+            node.release(reply);
+            step();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<NodeAddress> closest() {
+        List<NodeAddress> closest = new ArrayList<>(RESULTS);
+        for (NodeAddress candidate : candidates) {
+            if (closest.size() == RESULTS) {
+                break;
+            }
+            if (!failed.contains(candidate)) {
+                closest.add(candidate);
+            }
+        }
+        return closest;
+    }
+}
@@ -1,7 +1,25 @@
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 interface NodeInterface {
     void setNodeName(String nodeName) throws Exception;
@@ -16,20 +34,120 @@ interface NodeInterface {
     boolean CAS(String key, String currentValue, String newValue) throws Exception;
 }
 
-public class Node implements NodeInterface {
+// The same operations without waiting.  The futures complete as the responses come in,
+// and fail with whatever stopped the operation.  NodeInterface's methods wait on these.
+interface AsyncNodeInterface {
+    CompletableFuture<Boolean> existsAsync(String key);
+    CompletableFuture<String> readAsync(String key);
+    CompletableFuture<Boolean> writeAsync(String key, String value);
+    CompletableFuture<Boolean> CASAsync(String key, String currentValue, String newValue);
+    // Every key is looked up at once; keys that can't be found map to null
+    CompletableFuture<Map<String, String>> readAll(Collection<String> keys);
+    // Every pair is written at once; each key maps to whether its write was acknowledged
+    CompletableFuture<Map<String, Boolean>> writeAll(Map<String, String> values);
+    // The value's UTF-8 bytes are passed to pieces as they arrive; false if the key can't be found
+    CompletableFuture<Boolean> readStream(String key, Consumer<ByteBuffer> pieces);
+}
+
+// Final, as the constructor hands itself to the metrics and the replication pipeline
+public final class Node implements NodeInterface, AsyncNodeInterface {
 
     private String nodeName;
-    private DatagramSocket socket;
-    private Map<String, String> localStore;
-    private Map<String, String> dataStore;
-    public List<InetSocketAddress> neighbors;
+    private NodeAddress self;
+    // The transport given to attach, wrapped so messages too big for one datagram go in
+    // fragments; the reassembler puts those coming the other way back together
+    private Transport transport;
+    private Fragmenter fragmenter;
+    private Reassembler reassembler;
+    // Keys written here and keys held for other nodes, each once, told apart by flags
+    private KeyValueStore store;
+    // Set when the store is kept on disk
+    private DurableStore durableStore;
     private ArrayDeque<String> relayStack;
+    // The relays requests go through, first hop first; replaced whenever the stack changes
+    private volatile List<String> relayPath = List.of();
+    // Nodes seen recently, including those the routing table has no room for, so relays
+    // and relay targets can be found without a search
+    private final AddressCache addresses = new AddressCache(AddressCache.DEFAULT_CAPACITY);
+
+    // Server side state for requests handled on the receive thread
+    private final CRNReader requestReader = new CRNReader();
+    private final CRNWriter responseWriter = new CRNWriter();
+    private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(BufferPool.BUFFER_SIZE);
+
+    // Requests are encoded by whichever thread makes the call
+    private static final ThreadLocal<CRNWriter> requestWriters = ThreadLocal.withInitial(CRNWriter::new);
+
+    // Every request this node sends, including relayed ones, waits here for its response
+    private final TransactionTable<CRNReader> transactions = new TransactionTable<>();
+    private Thread receiver;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Map<InetSocketAddress, PeerStats> peerStats = new ConcurrentHashMap<>();
+    // Responses to recent write, CAS and relay requests, for answering retransmissions
+    private final ResponseCache recentResponses =
+            new ResponseCache(ResponseCache.DEFAULT_CAPACITY, ResponseCache.DEFAULT_EXPIRY_MS);
+    // The other nodes this node knows, a few at each distance, and addresses it hasn't named yet.
+    // Distances are from this node, so until it has a name they are from an empty one, and
+    // setNodeName moves everything into a new table.
+    private volatile RoutingTable routing = new RoutingTable(HashID.of(""));
+    // Probes the routing table in the background so isActive needn't wait
+    private volatile LivenessChecker liveness;
+    private volatile int lookupParallelism = 3;
+    // Writes to other nodes are queued per peer; writeAcks decides when write returns true
+    private final ReplicationPipeline replication;
+    private volatile AckPolicy writeAcks = AckPolicy.QUORUM;
+    // Values read from other nodes, when enabled with enableReadCache
+    private volatile ReadCache readCache;
+    private static final long NEGATIVE_CACHE_MS = 1000;
+    // Summaries of which keys other nodes hold, when enabled with enableKeySummaries
+    private volatile KeySummaries summaries;
+
+    // Where requests are handled.  With no executor they run on the receiving thread,
+    // which is cheapest while handlers never wait on anything; with one, the receive
+    // loop only decodes the header and hands the request over.  Per-opcode limits stop
+    // one kind of slow request from using up the executor; requests over the limit are
+    // dropped, as the sender will retry or time out anyway.
+    private volatile Executor requestExecutor;
+    private final Semaphore[] opcodeLimits = new Semaphore[128];
+    private static final long RELAY_TIMEOUT_MS = 5000;
+
+    // How update backs off when its CAS fails
+    static final int MAX_UPDATE_ATTEMPTS = 32;
+    private static final long MIN_UPDATE_BACKOFF_MS = 1;
+    private static final long MAX_UPDATE_BACKOFF_MS = 100;
+
+    // Counters and latencies for every opcode and peer, read through metrics(), JMX or the log
+    private final NodeMetrics metrics = new NodeMetrics(peerStats);
+
+    // Writes the fields that follow the opcode of a request
+    interface RequestBody {
+        void encode(CRNWriter out);
+    }
+
+    private static final RequestBody NO_FIELDS = out -> {};
 
     public Node() {
-        localStore = new ConcurrentHashMap<>();
-        dataStore = new ConcurrentHashMap<>();
-        neighbors = new ArrayList<>();
+        store = new CompactStore();
         relayStack = new ArrayDeque<>();
+        metrics.gauge("inFlightRequests", transactions::size);
+        metrics.gauge("storeKeys", () -> store.size());
+        metrics.gauge("routingNodes", () -> routing.size());
+        metrics.gauge("cachedAddresses", addresses::size);
+        metrics.gauge("readCacheBytes", () -> {
+            ReadCache cache = readCache;
+            return cache == null ? 0 : cache.byteSize();
+        });
+        metrics.gauge("summaryCopies", () -> {
+            KeySummaries s = summaries;
+            return s == null ? 0 : s.copyCount();
+        });
+        metrics.gauge("requestsSkipped", () -> {
+            KeySummaries s = summaries;
+            return s == null ? 0 : s.skippedCount();
+        });
+        metrics.gauge("reassemblyBytes", () -> reassembler == null ? 0 : reassembler.bytesHeld());
+        metrics.gauge("fragmentsResent", () -> fragmenter == null ? 0 : fragmenter.fragmentsResent());
+        replication = new ReplicationPipeline(this::sendWrite, ReplicationPipeline.DEFAULT_WINDOW);
     }
 
     @Override
@@ -38,121 +156,1043 @@ public class Node implements NodeInterface {
             throw new Exception("Node name must start with 'N:'");
         }
         this.nodeName = nodeName;
-        System.out.println("Node name set to: " + nodeName);
+        this.self = new NodeAddress(nodeName, null);
+        RoutingTable table = new RoutingTable(self.hashID);
+        RoutingTable previous = routing;
+        for (NodeAddress known : previous.nodes()) {
+            table.add(known);
+        }
+        for (InetSocketAddress seed : previous.seeds()) {
+            table.addSeed(seed);
+        }
+        routing = table;
+        metrics.setNodeName(nodeName);
+        Log.info("Node name set to: ", nodeName);
+    }
+
+    // Keeps this node's store in directory so it survives a restart, restoring whatever
+    // was saved there before.  Call it before openPort.  Writes only return once they are
+    // on disk, so with a slow disk and many writes, handle requests on an executor.
+    public void enablePersistence(String directory) throws Exception {
+        if (durableStore != null) {
+            throw new Exception("Persistence is already enabled");
+        }
+        if (summaries != null) {
+            throw new Exception("Persistence must be enabled before key summaries");
+        }
+        durableStore = DurableStore.open(Paths.get(directory), new CompactStore());
+        store = durableStore;
+        store.forEach((key, value, flags) -> {
+            if (key.startsWith("N:") && (flags & KeyValueStore.REPLICA) != 0) {
+                learnAddress(key, value);
+            }
+        });
+        Log.info("Restored " + store.size() + " keys from ", directory);
     }
 
     @Override
     public void openPort(int portNumber) throws Exception {
-        socket = new DatagramSocket(portNumber);
-        socket.setSoTimeout(1000);
-        System.out.println("Opened port: " + portNumber);
+        UdpTransport udp = new UdpTransport(portNumber, BufferPool.shared());
+        attach(udp);
+        Log.info("Opened port: ", portNumber);
+
+        // A single thread receives everything: requests are answered and
+        // responses are handed to whichever call is waiting for them
+        receiver = new Thread(() -> receiveLoop(udp), "CRN-receiver-" + portNumber);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Gives the node a transport without starting a receive thread; NodeHost and
+    // SimulatedNetwork use this and deliver datagrams from their own threads
+    void attach(Transport transport) {
+        fragmenter = new Fragmenter(transport);
+        reassembler = new Reassembler(fragmenter, key -> !isResponse(key.opcode) || transactions.isWaiting(key.txid, key.destination));
+        this.transport = fragmenter;
+        setLivenessInterval(LivenessChecker.DEFAULT_INTERVAL_MS);
+    }
+
+    // How often nodes in the routing table that haven't been heard from are checked.
+    // 0 stops checking, and isActive asks the node each time instead.
+    public void setLivenessInterval(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("The liveness interval can't be negative");
+        }
+        LivenessChecker previous = liveness;
+        if (previous != null) {
+            previous.stop();
+        }
+        liveness = intervalMs == 0 ? null : new LivenessChecker(this, intervalMs);
+        if (liveness != null) {
+            liveness.start();
+        }
     }
 
     @Override
     public void handleIncomingMessages(int delay) throws Exception {
-        System.out.println("Listening for incoming messages...");
-        long endTime = System.currentTimeMillis() + delay;
-        while (delay == 0 || System.currentTimeMillis() < endTime) {
+        Log.info("Listening for incoming messages...");
+        if (delay == 0) {
+            stopped.await();
+        } else {
+            stopped.await(delay, TimeUnit.MILLISECONDS);
+        }
+        Log.info("Timeout reached, exiting handleIncomingMessages()");
+    }
+
+    private void receiveLoop(UdpTransport udp) {
+        ByteBuffer buffer = udp.acquire();
+        while (udp.isOpen()) {
             try {
-                byte[] buffer = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                processPacket(packet);
-            } catch (SocketTimeoutException e) {
-                // Timeout - loop again
+                InetSocketAddress sender = udp.receive(buffer);
+                if (deliver(buffer, sender)) {
+                    // The buffer went to a waiting request, so receive into a fresh one
+                    buffer = udp.acquire();
+                }
+            } catch (ClosedChannelException e) {
+                // Closed by shutdown()
+            } catch (Exception e) {
+                Log.error("[receiveLoop] Error: ", e.getMessage());
             }
         }
-        System.out.println("Timeout reached, exiting handleIncomingMessages()");
+        stopped.countDown();
     }
 
-    private void processPacket(DatagramPacket packet) throws Exception {
-        String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-        System.out.println("Received packet from " + packet.getAddress() + ":" + packet.getPort() + " -> " + message);
+    // Handles one received datagram.  Only one thread at a time may deliver to a node.
+    // Returns true if the buffer was handed on to a waiting request and must not be reused.
+    boolean deliver(ByteBuffer message, InetSocketAddress sender) {
+        try {
+            return processMessage(message, sender);
+        } catch (Exception e) {
+            Log.error("[deliver] Error: ", e.getMessage());
+            return false;
+        }
     }
 
-    public boolean checkNodeIsActive(InetSocketAddress neighbor) throws Exception {
+    public void setRequestExecutor(Executor executor) {
+        this.requestExecutor = executor;
+    }
+
+    // Handles every request on its own virtual thread
+    public void useVirtualThreads() {
+        setRequestExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    // At most maxConcurrent requests of this type are handled at once when an executor is used
+    public void setOpcodeLimit(char opcode, int maxConcurrent) {
+        if (opcode >= opcodeLimits.length || !isRequest(opcode)) {
+            throw new IllegalArgumentException("Not a request opcode: " + opcode);
+        }
+        opcodeLimits[opcode] = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+
+    // Returns true if the message buffer was handed on and must not be reused
+    private boolean processMessage(ByteBuffer message, InetSocketAddress sender) throws Exception {
+        CRNReader in = requestReader.reset(message);
+        int txid = in.transactionID();
+        char opcode = in.opcode();
+        if (txid < 0 || opcode == 0) {
+            return false;
+        }
+        routing.heardFrom(sender);
+        if (opcode == 'P') {
+            return handleFragment(in, txid, sender);
+        }
+        if (opcode == 'M') {
+            fragmenter.resend(in, txid, sender);
+            return false;
+        }
+        if (opcode == 'B') {
+            KeySummaries s = summaries;
+            if (s != null) {
+                s.receive(in, sender);
+            }
+            return false;
+        }
+        if (isResponse(opcode)) {
+            return handleResponse(message, txid, sender);
+        }
+        if (!isRequest(opcode)) {
+            // Information messages and anything unknown are ignored
+            return false;
+        }
+        metrics.requestReceived(opcode);
+
+        Executor executor = requestExecutor;
+        if (executor == null) {
+            handleRequest(in, responseWriter.reset(responseBuffer), message, txid, opcode, sender);
+            return false;
+        }
+        Semaphore limit = opcodeLimits[opcode];
+        if (limit != null && !limit.tryAcquire()) {
+            metrics.requestDropped(opcode);
+            return false;
+        }
         try {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "G";
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
-
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
-
-            byte[] recvBuf = new byte[1024];
-            DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-            socket.setSoTimeout(1000);
-            socket.receive(response);
-
-            String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-            if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " H ")) {
-                String returnedName = responseMsg.substring(5).trim();
-                System.out.println("Node at " + neighbor + " is active → " + returnedName);
-                return true;
+            executor.execute(() -> handleRequestTask(message, txid, opcode, sender, limit));
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (limit != null) {
+                limit.release();
             }
-        } catch (SocketTimeoutException e) {
-            // No response
-        } catch (Exception e) {
-            System.err.println("[checkNodeIsActive] Error: " + e.getMessage());
+            metrics.requestDropped(opcode);
+            return false;
+        }
+    }
+
+    // A fragment of a message too big for one datagram.  Once the message is complete it is
+    // handled as if it had come in one; the fragment's own buffer is never handed on.
+    private boolean handleFragment(CRNReader in, int txid, InetSocketAddress sender) throws Exception {
+        char opcode = in.nextChar();
+        // Nothing is waiting for a response to a request that has been answered or given up on
+        if (isResponse(opcode) && !transactions.isWaiting(txid, sender)) {
+            return false;
+        }
+        if (reassembler.finished(sender, txid, opcode)) {
+            // The request came in whole but the sender hasn't had the answer, so it is sent again
+            byte[] reply = isRequest(opcode) ? recentResponses.reply(sender, txid) : null;
+            if (reply != null) {
+                sendReply(reply, sender);
+            }
+            return false;
+        }
+        ByteBuffer message = reassembler.fragment(in, txid, opcode, sender);
+        if (message != null) {
+            processMessage(message, sender);
         }
         return false;
     }
 
-    @Override
-    public boolean isActive(String nodeName) throws Exception {
-        for (InetSocketAddress neighbor : neighbors) {
-            String foundName = queryNodeName(neighbor);
-            if (foundName != null && foundName.equals(nodeName)) {
+    // Runs a request on the executor; the task owns the message buffer and gives it back when done
+    private void handleRequestTask(ByteBuffer message, int txid, char opcode, InetSocketAddress sender, Semaphore limit) {
+        ByteBuffer reply = transport.acquire();
+        try {
+            CRNReader in = new CRNReader().reset(message);
+            in.transactionID();
+            in.opcode();
+            handleRequest(in, new CRNWriter().reset(reply), message, txid, opcode, sender);
+        } catch (Exception e) {
+            Log.error("[handleRequest] Error: ", e.getMessage());
+        } finally {
+            transport.release(reply);
+            transport.release(message);
+            if (limit != null) {
+                limit.release();
+            }
+        }
+    }
+
+    // in is positioned after the opcode and out is empty, ready for the response
+    private void handleRequest(CRNReader in, CRNWriter out, ByteBuffer message, int txid, char opcode,
+                               InetSocketAddress sender) throws Exception {
+        KeySummaries s = summaries;
+        if (s != null && (opcode == 'N' || opcode == 'E' || opcode == 'R')) {
+            s.askedBy(sender);
+        }
+        switch (opcode) {
+            case 'G': handleNameRequest(out, txid, sender); break;
+            case 'N': handleNearestRequest(in, out, txid, sender); break;
+            case 'E': handleExistsRequest(in, out, txid, sender); break;
+            case 'R': handleReadRequest(in, out, txid, sender); break;
+            case 'W':
+            case 'C': handleOnce(in, out, txid, opcode, sender); break;
+            case 'V': handleRelayRequest(in, out, message, txid, sender); break;
+            default:
+        }
+    }
+
+    // Runs a write or CAS unless it is a retransmission of one already handled,
+    // in which case the same response is sent again
+    private void handleOnce(CRNReader in, CRNWriter out, int txid, char opcode, InetSocketAddress sender) throws Exception {
+        if (isDuplicate(sender, txid, ResponseCache.fingerprint(in.buffer(), in.position()))) {
+            return;
+        }
+        try {
+            if (opcode == 'W') {
+                handleWriteRequest(in, out, txid, sender);
+            } else {
+                handleCASRequest(in, out, txid, sender);
+            }
+        } finally {
+            ByteBuffer response = out.message();
+            if (response != null) {
+                recentResponses.complete(sender, txid, response);
+            } else {
+                recentResponses.abandon(sender, txid);
+            }
+        }
+    }
+
+    // Sends the earlier response again if there is one.  A copy that arrives while the
+    // first is still being handled is dropped; the first one's response will answer it.
+    private boolean isDuplicate(InetSocketAddress sender, int txid, int fingerprint) throws IOException {
+        ResponseCache.Entry earlier = recentResponses.begin(sender, txid, fingerprint);
+        if (earlier == null) {
+            return false;
+        }
+        byte[] reply = earlier.reply;
+        if (reply != null) {
+            sendReply(reply, sender);
+        }
+        return true;
+    }
+
+    private void sendReply(byte[] reply, InetSocketAddress destination) throws IOException {
+        if (reply.length > Fragmenter.MAX_DATAGRAM) {
+            transport.send(ByteBuffer.wrap(reply), destination);
+            return;
+        }
+        ByteBuffer buffer = transport.acquire();
+        try {
+            buffer.put(reply).flip();
+            transport.send(buffer, destination);
+        } finally {
+            transport.release(buffer);
+        }
+    }
+
+    // A node without a name yet has nothing to answer with
+    private void handleNameRequest(CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        String name = nodeName;
+        if (name == null) {
+            return;
+        }
+        out.header(txid, 'H').string(name);
+        sendResponse(out, sender);
+    }
+
+    private void handleNearestRequest(CRNReader in, CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        HashID requested = in.nextHashID();
+        if (requested == null) {
+            return;
+        }
+        out.header(txid, 'O');
+        for (NodeAddress known : routing.closest(requested, NearestSearch.RESULTS)) {
+            out.string(known.name).string(known.address.getAddress().getHostAddress() + ":" + known.address.getPort());
+        }
+        sendResponse(out, sender);
+    }
+
+    private void handleExistsRequest(CRNReader in, CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        String key = in.nextStringValue();
+        if (key == null) {
+            return;
+        }
+        char result = lookup(key) != null ? 'Y' : isClosest(HashID.of(key)) ? 'N' : '?';
+        sendResponse(out.header(txid, 'F').character(result), sender);
+    }
+
+    private void handleReadRequest(CRNReader in, CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        String key = in.nextStringValue();
+        if (key == null) {
+            return;
+        }
+        String value = lookup(key);
+        out.header(txid, 'S');
+        if (value != null) {
+            out.character('Y').string(value);
+        } else {
+            out.character(isClosest(HashID.of(key)) ? 'N' : '?').string("");
+        }
+        sendResponse(out, sender);
+    }
+
+    private void handleWriteRequest(CRNReader in, CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        String key = in.nextStringValue();
+        String value = key == null ? null : in.nextStringValue();
+        if (value == null) {
+            return;
+        }
+        // Data is only kept by the nodes closest to it; address pairs are always learnt
+        boolean address = key.startsWith("N:");
+        if (!address && !isReplica(key) && !isClosest(HashID.of(key))) {
+            sendResponse(out.header(txid, 'X').character('X'), sender);
+            return;
+        }
+        String previous = store.put(key, value, KeyValueStore.REPLICA);
+        if (address) {
+            learnAddress(key, value);
+        }
+        sendResponse(out.header(txid, 'X').character(previous == null ? 'A' : 'R'), sender);
+    }
+
+    private void handleCASRequest(CRNReader in, CRNWriter out, int txid, InetSocketAddress sender) throws Exception {
+        String key = in.nextStringValue();
+        String currentValue = key == null ? null : in.nextStringValue();
+        String newValue = currentValue == null ? null : in.nextStringValue();
+        if (newValue == null) {
+            return;
+        }
+        char result = !isReplica(key) && !isClosest(HashID.of(key)) ? 'X' : replicaCAS(key, currentValue, newValue);
+        sendResponse(out.header(txid, 'D').character(result), sender);
+    }
+
+    // This node's own copy of key, or null if it doesn't hold it
+    String replicaValue(String key) {
+        return store.get(key);
+    }
+
+    // Compare-and-swap on this node's copy of a key it holds for others, atomically in the store:
+    // A if it wasn't held and has been added, R if it held currentValue and now holds newValue,
+    // and N if it holds something else
+    char replicaCAS(String key, String currentValue, String newValue) {
+        if (store.putIfAbsent(key, newValue, KeyValueStore.REPLICA) == null) {
+            return 'A';
+        }
+        return store.replace(key, currentValue, newValue, KeyValueStore.REPLICA) ? 'R' : 'N';
+    }
+
+    // A relay message is a node name followed by a complete message to pass on to that node
+    private void handleRelayRequest(CRNReader in, CRNWriter out, ByteBuffer message, int txid,
+                                    InetSocketAddress sender) throws Exception {
+        String target = in.nextStringValue();
+        // The inner message needs at least its transaction ID, a space and its opcode
+        if (target == null || in.remaining() < 4) {
+            return;
+        }
+        int innerStart = in.position();
+        int innerLength = in.remaining();
+        if (target.equals(nodeName)) {
+            message.position(innerStart);
+            in.reset(message);
+            int innerTxid = in.transactionID();
+            char innerOpcode = in.opcode();
+            if (innerTxid >= 0 && isRequest(innerOpcode)) {
+                handleRequest(in, out, message, innerTxid, innerOpcode, sender);
+            }
+            return;
+        }
+        boolean request = isRequest((char) message.get(innerStart + 3));
+        // A retransmitted relay request isn't forwarded again, so the target doesn't run it twice
+        if (request && isDuplicate(sender, txid, ResponseCache.fingerprint(message, innerStart))) {
+            return;
+        }
+        CompletableFuture<InetSocketAddress> next = locate(target);
+        if (next.isDone()) {
+            forwardRelayed(message, innerStart, innerLength, request, txid, sender, target, next.getNow(null));
+            return;
+        }
+        // The target has to be searched for first, and the message buffer is reused once we return
+        ByteBuffer inner = ByteBuffer.allocate(innerLength);
+        inner.put(message.duplicate().position(innerStart).limit(innerStart + innerLength)).flip();
+        next.whenComplete((address, error) -> {
+            try {
+                forwardRelayed(inner, 0, innerLength, request, txid, sender, target, address);
+            } catch (Exception e) {
+                Log.error("[relay] Error: ", e.getMessage());
+            }
+        });
+    }
+
+    // Passes the message in source on to the relay's target
+    private void forwardRelayed(ByteBuffer source, int start, int length, boolean request, int txid,
+                                InetSocketAddress sender, String target, InetSocketAddress targetAddress) throws IOException {
+        if (targetAddress == null) {
+            if (request) {
+                recentResponses.abandon(sender, txid);
+            }
+            return;
+        }
+        ByteBuffer forwarded = transport.acquire();
+        try {
+            ByteBuffer message = new CRNWriter().reset(forwarded).raw(source, start, length).finish();
+            if (request) {
+                // Forwarded with our own transaction ID; the response goes back with the original one
+                CompletableFuture<CRNReader> relayed = new CompletableFuture<>();
+                int relayTxid = transactions.register(relayed, targetAddress, RELAY_TIMEOUT_MS);
+                message.put(0, (byte) (relayTxid >>> 8));
+                message.put(1, (byte) relayTxid);
+                relayed.whenComplete((response, error) -> {
+                    if (response != null) {
+                        relayResponse(response, txid, sender);
+                    } else {
+                        recentResponses.abandon(sender, txid);
+                        addresses.remove(target, targetAddress);
+                    }
+                });
+            }
+            transport.send(message, targetAddress);
+        } finally {
+            transport.release(forwarded);
+        }
+    }
+
+    private void relayResponse(CRNReader response, int originalTxid, InetSocketAddress requester) {
+        ByteBuffer data = response.buffer();
+        try {
+            data.put(0, (byte) (originalTxid >>> 8));
+            data.put(1, (byte) originalTxid);
+            data.position(0);
+            recentResponses.complete(requester, originalTxid, data);
+            transport.send(data, requester);
+        } catch (Exception e) {
+            Log.error("[relay] Error: ", e.getMessage());
+        } finally {
+            transport.release(data);
+        }
+    }
+
+    // The receive buffer itself is passed to the waiting request, which releases it once read.
+    // Only the address the request went to, the first relay if it was relayed, can answer it.
+    private boolean handleResponse(ByteBuffer message, int txid, InetSocketAddress sender) {
+        if (!transactions.isWaiting(txid, sender)) {
+            if (transactions.isWaiting(txid)) {
+                metrics.strayResponse();
+            } else {
+                metrics.lateResponse();
+            }
+            return false;
+        }
+        CRNReader response = new CRNReader().reset(message);
+        response.transactionID();
+        return transactions.complete(txid, sender, response);
+    }
+
+    // Gives a response's buffer back to the pool once the caller has finished reading it
+    void release(CRNReader response) {
+        if (response != null) {
+            transport.release(response.buffer());
+        }
+    }
+
+    // Sends a request and returns a future for the response, positioned at the response opcode.
+    // While the relay stack isn't empty the request goes through the relays, wrapped in a relay
+    // (V) message for each.  Relay messages name their target, so a request to an address we
+    // have no name for fails rather than going round the relays; nearest searches, whose
+    // answers name the nodes, go on with the nodes they do have names for.
+    CompletableFuture<CRNReader> sendRequest(InetSocketAddress destination, char opcode, RequestBody body) throws Exception {
+        return sendRequest(destination, opcode, body, null);
+    }
+
+    // As sendRequest, with the S response to a read passed to stream as it arrives if it
+    // comes in fragments
+    private CompletableFuture<CRNReader> sendRequest(InetSocketAddress destination, char opcode, RequestBody body,
+                                                     Reassembler.Sink stream) throws Exception {
+        List<String> relays = relayPath;
+        String target = relays.isEmpty() ? null : addresses.name(destination);
+        if (!relays.isEmpty() && target == null) {
+            return CompletableFuture.failedFuture(new UnknownHostException("No name known for " + destination + " to relay to"));
+        }
+        // A request for one of the relays goes no further along the path than that relay
+        int hops = target == null ? 0 : relays.indexOf(target);
+        List<String> path = hops >= 0 ? relays.subList(0, hops) : relays;
+        if (path.isEmpty()) {
+            return send(destination, opcode, body, null, null, stream);
+        }
+        CompletableFuture<InetSocketAddress> firstHop = locate(path.get(0));
+        if (firstHop.isDone()) {
+            return sendVia(firstHop.getNow(null), path, target, opcode, body, stream);
+        }
+        return firstHop.thenCompose(address -> sendVia(address, path, target, opcode, body, stream));
+    }
+
+    // Sends a request straight to destination, whatever is on the relay stack
+    CompletableFuture<CRNReader> sendDirect(InetSocketAddress destination, char opcode, RequestBody body) throws Exception {
+        return send(destination, opcode, body, null, null, null);
+    }
+
+    private CompletableFuture<CRNReader> sendVia(InetSocketAddress firstHop, List<String> relays, String target,
+                                                 char opcode, RequestBody body, Reassembler.Sink stream) {
+        if (firstHop == null) {
+            return CompletableFuture.failedFuture(new TimeoutException("Relay " + relays.get(0) + " can't be found"));
+        }
+        try {
+            return send(firstHop, opcode, body, relays, target, stream);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // The request is retransmitted on the peer's own timeout, backing off each time, and the
+    // future fails with a TimeoutException if nothing comes back after the last attempt.
+    // A peer that has stopped responding isn't sent anything: the future fails straight away.
+    // With relays, destination is the first of them and target is the name of the node the
+    // request is for; every relay after the first adds a V envelope naming the next hop.
+    private CompletableFuture<CRNReader> send(InetSocketAddress destination, char opcode, RequestBody body,
+                                              List<String> relays, String target, Reassembler.Sink stream) throws Exception {
+        CompletableFuture<CRNReader> response = new CompletableFuture<>();
+        PeerStats stats = peerStats(destination);
+        if (!stats.allowRequest()) {
+            metrics.requestTimedOut(opcode, 0);
+            response.completeExceptionally(new TimeoutException(destination + " is not responding"));
+            return response;
+        }
+        long timeout = relays == null ? stats.timeoutMs()
+                : Math.min(stats.timeoutMs() * (relays.size() + 1), PeerStats.MAX_TIMEOUT_MS);
+        int txid = transactions.register(response, destination, Retransmitter.totalTimeout(timeout));
+        ByteBuffer buffer = transport.acquire();
+        ByteBuffer message;
+        Retransmitter sender;
+        try {
+            CRNWriter out = requestWriters.get().reset(buffer);
+            if (relays != null) {
+                for (int i = 1; i < relays.size(); i++) {
+                    out.header(txid, 'V').string(relays.get(i));
+                }
+                out.header(txid, 'V').string(target);
+            }
+            out.header(txid, opcode);
+            body.encode(out);
+            message = out.finish();
+            sender = new Retransmitter(transport, message, destination, response, timeout);
+        } catch (RuntimeException e) {
+            transport.release(buffer);
+            throw e;
+        }
+        if (message != buffer) {
+            // Too big for a pooled buffer, so the writer moved it to one of its own
+            transport.release(buffer);
+        }
+        if (stream != null) {
+            reassembler.expect(destination, txid, 'S', stream);
+            response.whenComplete((reply, error) -> reassembler.forget(destination, txid, 'S'));
+        }
+        long sent = System.nanoTime();
+        metrics.requestSent(opcode);
+        response.whenComplete((reply, error) -> {
+            long nanos = System.nanoTime() - sent;
+            if (error == null) {
+                metrics.responseReceived(opcode, sender.attempts());
+            } else if (error instanceof TimeoutException) {
+                metrics.requestTimedOut(opcode, sender.attempts());
+            }
+            if (relays != null) {
+                // A relayed round trip says little about the first hop, and any hop could have lost it
+                if (error == null) {
+                    stats.recordResponse(nanos, false);
+                } else {
+                    stats.recordCancelled();
+                    if (error instanceof TimeoutException) {
+                        addresses.remove(relays.get(0), destination);
+                    }
+                }
+            } else if (error == null) {
+                stats.recordResponse(nanos, sender.attempts() == 1);
+            } else if (error instanceof TimeoutException) {
+                stats.recordTimeout(sent);
+                routing.timedOut(destination, sent);
+            } else {
+                stats.recordCancelled();
+            }
+        });
+        sender.start();
+        return response;
+    }
+
+    private PeerStats peerStats(InetSocketAddress peer) {
+        return peerStats.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    // How many peers read, exists and isActive query at once; 1 asks them one at a time
+    public void setLookupParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Lookup parallelism must be at least 1");
+        }
+        this.lookupParallelism = parallelism;
+    }
+
+    // How many of a key's replicas, including this node if it is one, must store a write
+    // for write to return true.  Quorum by default.
+    public void setWriteAcknowledgement(AckPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("An acknowledgement policy is needed");
+        }
+        this.writeAcks = policy;
+    }
+
+    // Keeps values read from other nodes for ttlMs, in at most maxBytes.
+    // Keys that couldn't be found are remembered for at most a second.
+    public void enableReadCache(long maxBytes, long ttlMs) {
+        if (maxBytes <= 0 || ttlMs <= 0) {
+            throw new IllegalArgumentException("The read cache needs a positive size and time to live");
+        }
+        readCache = new ReadCache(maxBytes, ttlMs, Math.min(ttlMs, NEGATIVE_CACHE_MS));
+    }
+
+    public void disableReadCache() {
+        readCache = null;
+    }
+
+    // Keeps a summary of the keys this node holds and sends it to the nodes in the routing
+    // table, and those that search through it or ask it for keys, every intervalMs and soon after a key
+    // is added, and uses theirs to skip replicas that can't hold a key on exists and read.
+    // A key another node wrote moments ago may not be found.  Call after enablePersistence.
+    public void enableKeySummaries(long intervalMs) throws Exception {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("The summary interval must be positive");
+        }
+        if (summaries != null) {
+            throw new Exception("Key summaries are already enabled");
+        }
+        CountingBloomFilter filter = new CountingBloomFilter();
+        KeySummaries s = new KeySummaries(this, filter, intervalMs);
+        store = new SummarizedStore(store, filter, s::added);
+        summaries = s;
+        s.start();
+    }
+
+    public long readCacheHits() {
+        ReadCache cache = readCache;
+        return cache == null ? 0 : cache.hitCount();
+    }
+
+    public long readCacheMisses() {
+        ReadCache cache = readCache;
+        return cache == null ? 0 : cache.missCount();
+    }
+
+    NodeMetrics metrics() {
+        return metrics;
+    }
+
+    // Makes the metrics readable over JMX, as crn:type=Node,name="<node name>".  Call after setNodeName.
+    public void registerMetrics() throws Exception {
+        metrics.register();
+    }
+
+    // Writes the metrics to the log every intervalMs; 0 stops it
+    public void dumpMetricsEvery(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("The dump interval can't be negative");
+        }
+        metrics.dumpEvery(intervalMs);
+    }
+
+    // Sends the same request to peers concurrently and completes with the first response
+    // that positive accepts (positive is given the response positioned at its opcode).
+    // Completes with null once every peer has answered negatively or timed out.
+    private CompletableFuture<CRNReader> firstPositive(List<InetSocketAddress> peers, char opcode,
+                                                       RequestBody body, Predicate<CRNReader> positive) {
+        return new FanOut(peers, opcode, body, positive).start();
+    }
+
+    // Keeps up to lookupParallelism requests in flight.  When a peer takes longer than it
+    // usually does, the next peer is asked as well rather than waiting for the timeout.
+    // As soon as one answer is positive the rest are cancelled.
+    private final class FanOut {
+        private final Iterator<InetSocketAddress> peers;
+        private final char opcode;
+        private final RequestBody body;
+        private final Predicate<CRNReader> positive;
+        private final CompletableFuture<CRNReader> result = new CompletableFuture<>();
+        private final List<CompletableFuture<CRNReader>> inFlight = new ArrayList<>();
+        private int outstanding;
+        // launch() sends while holding this, so it is a lock rather than a monitor a virtual thread would be pinned by
+        private final ReentrantLock lock = new ReentrantLock();
+
+        FanOut(List<InetSocketAddress> peers, char opcode, RequestBody body, Predicate<CRNReader> positive) {
+            this.peers = new ArrayList<>(peers).iterator();
+            this.opcode = opcode;
+            this.body = body;
+            this.positive = positive;
+        }
+
+        CompletableFuture<CRNReader> start() {
+            lock.lock();
+            try {
+                for (int i = 0; i < lookupParallelism; i++) {
+                    if (!launch()) {
+                        break;
+                    }
+                }
+                finishIfExhausted();
+            } finally {
+                lock.unlock();
+            }
+            return result;
+        }
+
+        private boolean launch() {
+            while (!result.isDone() && peers.hasNext()) {
+                InetSocketAddress peer = peers.next();
+                CompletableFuture<CRNReader> response;
+                try {
+                    response = sendRequest(peer, opcode, body);
+                } catch (Exception e) {
+                    continue;
+                }
+                outstanding++;
+                inFlight.add(response);
+                CompletableFuture.delayedExecutor(peerStats(peer).hedgeDelayMs(), TimeUnit.MILLISECONDS)
+                        .execute(() -> hedge(response));
+                response.whenComplete((reply, error) -> onResponse(reply));
                 return true;
             }
+            return false;
+        }
+
+        private void hedge(CompletableFuture<CRNReader> response) {
+            lock.lock();
+            try {
+                if (!response.isDone()) {
+                    launch();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onResponse(CRNReader reply) {
+            lock.lock();
+            try {
+                outstanding--;
+                if (reply != null && !result.isDone() && positive.test(reply)) {
+                    result.complete(reply);
+                    for (CompletableFuture<CRNReader> other : inFlight) {
+                        other.cancel(false);
+                    }
+                    return;
+                }
+                release(reply);
+                launch();
+                finishIfExhausted();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void finishIfExhausted() {
+            if (outstanding == 0 && !peers.hasNext()) {
+                result.complete(null);
+            }
         }
-        return false;
     }
 
-    private String queryNodeName(InetSocketAddress neighbor) throws Exception {
+    // Waits for an operation, throwing what it failed with rather than an ExecutionException
+    private static <T> T join(CompletableFuture<T> operation) throws Exception {
         try {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "G";
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+            return operation.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void sendResponse(CRNWriter out, InetSocketAddress destination) throws IOException {
+        transport.send(out.finish(), destination);
+    }
+
+    private static boolean isResponse(char opcode) {
+        return opcode == 'H' || opcode == 'O' || opcode == 'F' || opcode == 'S'
+                || opcode == 'X' || opcode == 'D';
+    }
+
+    private static boolean isRequest(char opcode) {
+        return opcode == 'G' || opcode == 'N' || opcode == 'E' || opcode == 'R'
+                || opcode == 'W' || opcode == 'C' || opcode == 'V';
+    }
+
+    private String lookup(String key) {
+        return store.get(key);
+    }
+
+    private boolean isReplica(String key) {
+        return (store.flags(key) & KeyValueStore.REPLICA) != 0;
+    }
 
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
+    // Whether this node is one of the three closest nodes it knows of to hashID.
+    // Until it has a name it isn't close to anything.
+    private boolean isClosest(HashID hashID) {
+        NodeAddress me = self;
+        return me != null && routing.countCloser(hashID, me.hashID, NearestSearch.RESULTS) < NearestSearch.RESULTS;
+    }
 
-            byte[] recvBuf = new byte[1024];
-            DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-            socket.setSoTimeout(1000);
-            socket.receive(response);
+    // Records an address key/value pair, returning null if it isn't a usable address.
+    // Pairs that find a place in the routing table are kept in the store as well.
+    NodeAddress learnAddress(String name, String address) {
+        if (name == null || !name.startsWith("N:") || name.equals(nodeName)) {
+            return null;
+        }
+        InetSocketAddress resolved = resolveAddress(address);
+        if (resolved == null) {
+            return null;
+        }
+        addresses.put(name, resolved);
+        NodeAddress known = routing.get(name);
+        if (known != null && known.address.equals(resolved)) {
+            return known;
+        }
+        known = new NodeAddress(name, resolved);
+        if (routing.add(known)) {
+            store.put(name, address, KeyValueStore.REPLICA);
+        }
+        return known;
+    }
 
-            String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-            if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " H ")) {
-                return responseMsg.substring(5).trim();
+    RoutingTable routing() {
+        return routing;
+    }
+
+    Transport transport() {
+        return transport;
+    }
+
+    // The peers that may hold key, by their summaries if key summaries are enabled
+    private List<InetSocketAddress> mayHold(List<InetSocketAddress> peers, String key) {
+        KeySummaries s = summaries;
+        return s == null ? peers : s.mayHold(peers, key);
+    }
+
+    // Where a node is, from the routing table or the address cache if we have it, and otherwise
+    // from a nearest search for its hashID.  Completes with null if it can't be found.
+    CompletableFuture<InetSocketAddress> locate(String name) {
+        NodeAddress known = routing.get(name);
+        if (known != null) {
+            return CompletableFuture.completedFuture(known.address);
+        }
+        InetSocketAddress cached = addresses.address(name);
+        if (cached == null) {
+            cached = resolveAddress(store.get(name));
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return nearestNodes(HashID.of(name)).handle((found, error) -> {
+            for (NodeAddress n : found == null ? List.<NodeAddress>of() : found) {
+                if (n.name.equals(name) && n.address != null) {
+                    return n.address;
+                }
             }
-        } catch (Exception ignored) {}
-        return null;
+            return null;
+        });
+    }
+
+    // Gives the node an address to start from, before it knows which node is there
+    public void addNeighbor(InetSocketAddress address) {
+        routing.addSeed(address);
+    }
+
+    // The addresses of the nodes in the routing table, and of those not yet named
+    public List<InetSocketAddress> neighbors() {
+        return routing.addresses();
     }
 
-    private byte[] generateTransactionID() {
-        Random rand = new Random();
-        byte[] txid = new byte[2];
-        do {
-            rand.nextBytes(txid);
-        } while (txid[0] == 0x20 || txid[1] == 0x20);
-        return txid;
+    // The nodes closest to hashID, found with an iterative nearest search.
+    // This node is included, with a null address, if it is one of them.
+    CompletableFuture<List<NodeAddress>> nearestNodes(HashID hashID) {
+        RoutingTable table = routing;
+        List<NodeAddress> known = table.nodes();
+        NodeAddress me = self;
+        if (me != null) {
+            known.add(me);
+        }
+        return new NearestSearch(this, hashID, lookupParallelism, known, table.seeds()).start();
+    }
+
+    // The addresses of the other nodes that should hold a key.  If the search found fewer
+    // nodes than a key needs, we don't know enough of the network to place it, so the
+    // neighbours we only have addresses for are included as well.
+    private List<InetSocketAddress> replicaPeers(List<NodeAddress> replicas) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (NodeAddress replica : replicas) {
+            if (replica.address != null) {
+                peers.add(replica.address);
+            }
+        }
+        if (replicas.size() < NearestSearch.RESULTS) {
+            for (InetSocketAddress neighbor : routing.addresses()) {
+                if (!peers.contains(neighbor)) {
+                    peers.add(neighbor);
+                }
+            }
+        }
+        return peers;
     }
 
-    private String formatCRNString(String input) {
-        int spaceCount = (int) input.chars().filter(ch -> ch == ' ').count();
-        return spaceCount + " " + input + " ";
+    // Address values are "ip:port"
+    private static InetSocketAddress resolveAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
+    public boolean checkNodeIsActive(InetSocketAddress neighbor) throws Exception {
+        try {
+            String returnedName = queryNodeName(neighbor);
+            if (returnedName != null) {
+                Log.info("Node at " + neighbor + " is active → ", returnedName);
+                return true;
+            }
+        } catch (Exception e) {
+            Log.error("[checkNodeIsActive] Error: ", e.getMessage());
+        }
+        return false;
+    }
+
+    // A node in the routing table is active if it has been heard from recently, which the
+    // liveness checker makes sure of.  Otherwise the node is found, from the routing table
+    // or with a nearest search for its hashID, and asked its name.
+    @Override
+    public boolean isActive(String nodeName) throws Exception {
+        NodeAddress known = routing.get(nodeName);
+        LivenessChecker checker = liveness;
+        if (known != null && checker != null) {
+            long heardAgo = routing.heardAgoMs(known.address);
+            if (heardAgo != Long.MAX_VALUE) {
+                return heardAgo < checker.staleAfterMs();
+            }
+        }
+        if (known == null) {
+            for (NodeAddress found : nearestNodes(HashID.of(nodeName)).get()) {
+                if (found.name.equals(nodeName) && found.address != null) {
+                    known = found;
+                }
+            }
+        }
+        if (known == null) {
+            return false;
+        }
+        CRNReader response = firstPositive(List.of(known.address), 'G', NO_FIELDS,
+                r -> r.opcode() == 'H' && nodeName.equals(r.nextStringValue())).get();
+        release(response);
+        return response != null;
+    }
+
+    private String queryNodeName(InetSocketAddress neighbor) throws Exception {
+        return requestName(neighbor).get();
+    }
+
+    // Asks the node at an address its name, and remembers it.  Completes with null if it doesn't answer.
+    CompletableFuture<String> requestName(InetSocketAddress neighbor) throws Exception {
+        return sendDirect(neighbor, 'G', NO_FIELDS).handle((response, error) -> {
+            try {
+                String name = response != null && response.opcode() == 'H' ? response.nextStringValue() : null;
+                if (name != null) {
+                    learnAddress(name, neighbor.getAddress().getHostAddress() + ":" + neighbor.getPort());
+                }
+                return name;
+            } finally {
+                release(response);
+            }
+        });
+    }
+
+    // Asks every neighbour its name at once, then reports on each
     public void checkBootstrappedNodesActive() throws Exception {
-        System.out.println("=== Checking active status of AzureLab nodes ===");
+        Log.info("=== Checking active status of AzureLab nodes ===");
+        List<InetSocketAddress> neighbors = routing.addresses();
+        List<CompletableFuture<String>> names = new ArrayList<>(neighbors.size());
         for (InetSocketAddress neighbor : neighbors) {
-            boolean isUp = checkNodeIsActive(neighbor);
-            System.out.println("Checking " + neighbor.getAddress().getHostAddress() + ":" + neighbor.getPort() +
-                    " -> isActive = " + isUp);
+            names.add(requestName(neighbor));
+        }
+        for (int i = 0; i < neighbors.size(); i++) {
+            InetSocketAddress neighbor = neighbors.get(i);
+            String name = names.get(i).get();
+            if (name != null) {
+                Log.info("Node at " + neighbor + " is active → ", name);
+            }
+            Log.info("Checking " + neighbor.getAddress().getHostAddress() + ":" + neighbor.getPort() +
+                    " -> isActive = ", name != null);
         }
     }
 
@@ -162,175 +1202,432 @@ public class Node implements NodeInterface {
             throw new Exception("Relay node name must start with 'N:'");
         }
         relayStack.push(nodeName);
-        System.out.println("Pushed to relay stack: " + nodeName);
+        relayPathChanged();
+        Log.info("Pushed to relay stack: ", nodeName);
     }
 
     @Override
     public void popRelay() throws Exception {
         if (!relayStack.isEmpty()) {
             String removed = relayStack.pop();
-            System.out.println("Popped from relay stack: " + removed);
+            relayPathChanged();
+            Log.info("Popped from relay stack: ", removed);
         } else {
-            System.out.println("Relay stack is already empty.");
+            Log.info("Relay stack is already empty.");
         }
     }
 
+    // The first node pushed is the first hop and the top of the stack is the last relay
+    // before the destination, so each push adds a hop at the far end of the path
+    private void relayPathChanged() {
+        List<String> path = new ArrayList<>(relayStack);
+        Collections.reverse(path);
+        relayPath = List.copyOf(path);
+    }
+
     @Override
     public boolean exists(String key) throws Exception {
-        if (localStore.containsKey(key) || dataStore.containsKey(key)) {
-            System.out.println("[exists] Found in local store");
-            return true;
+        return join(existsAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String key) {
+        if (store.flags(key) != 0) {
+            Log.debug("[exists] Found in local store");
+            return CompletableFuture.completedFuture(true);
+        }
+        ReadCache cache = readCache;
+        ReadCache.Entry cached = cache == null ? null : cache.get(key);
+        if (cached != null) {
+            Log.debug("[exists] Found in read cache");
+            return CompletableFuture.completedFuture(cached.value != null);
         }
+        long stamp = cache == null ? 0 : cache.stamp(key);
 
-        for (InetSocketAddress neighbor : neighbors) {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "E " + formatCRNString(key);
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+        return nearestNodes(HashID.of(key))
+                .thenCompose(replicas -> firstPositive(mayHold(replicaPeers(replicas), key), 'E', out -> out.string(key),
+                        r -> r.opcode() == 'F' && r.nextChar() == 'Y'))
+                .thenApply(response -> {
+                    if (response != null) {
+                        release(response);
+                        Log.debug("[exists] Found via E → F");
+                        return true;
+                    }
+                    if (cache != null) {
+                        cache.put(key, null, stamp);
+                    }
+                    Log.debug("[exists] Key not found");
+                    return false;
+                });
+    }
 
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
+    @Override
+    public String read(String key) throws Exception {
+        return join(readAsync(key));
+    }
 
-            try {
-                byte[] recvBuf = new byte[1024];
-                DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-                socket.setSoTimeout(1000);
-                socket.receive(response);
-
-                String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-                if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " V Y")) {
-                    System.out.println("[exists] Found via E → V from " + neighbor);
-                    return true;
-                }
-            } catch (SocketTimeoutException ignored) {}
+    @Override
+    public CompletableFuture<String> readAsync(String key) {
+        String local = lookup(key);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
         }
-
-        String value = read(key);
-        if (value != null) {
-            System.out.println("[exists] Found using read() fallback");
-            return true;
+        ReadCache cache = readCache;
+        ReadCache.Entry cached = cache == null ? null : cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.value);
         }
+        long stamp = cache == null ? 0 : cache.stamp(key);
+        return readReplicas(key, true).thenApply(value -> {
+            if (cache != null) {
+                cache.put(key, value, stamp);
+            }
+            return value;
+        });
+    }
 
-        System.out.println("[exists] Key not found");
-        return false;
+    // Reads a key from the other nodes that hold it, whatever this node has for it.
+    // With summarized, replicas whose key summary rules the key out aren't asked.
+    private CompletableFuture<String> readReplicas(String key, boolean summarized) {
+        return nearestNodes(HashID.of(key))
+                .thenApply(replicas -> summarized ? mayHold(replicaPeers(replicas), key) : replicaPeers(replicas))
+                .thenCompose(peers -> readFrom(peers, key));
     }
 
+    // Reads key from peers alone, completing with the first value found, or null if none has it
+    CompletableFuture<String> readFrom(List<InetSocketAddress> peers, String key) {
+        // The accepted response is left positioned just after the Y
+        return firstPositive(peers, 'R', out -> out.string(key), r -> r.opcode() == 'S' && r.nextChar() == 'Y')
+                .thenApply(response -> {
+                    String value = null;
+                    if (response != null) {
+                        value = response.nextStringValue();
+                        release(response);
+                    }
+                    return value;
+                });
+    }
+
+    // Reads a key's value a piece at a time as it arrives, rather than as one String, for
+    // values too big to want in memory at once.  pieces is given the value's UTF-8 bytes in
+    // order, on the thread that receives them, and mustn't keep the buffer; a character
+    // may be split between two pieces.  The replicas are asked one at a time, so if one
+    // stops part way through the future fails rather than starting again from another.
     @Override
-    public String read(String key) throws Exception {
-        if (localStore.containsKey(key)) {
-            return localStore.get(key);
+    public CompletableFuture<Boolean> readStream(String key, Consumer<ByteBuffer> pieces) {
+        String local = lookup(key);
+        if (local != null) {
+            pieces.accept(StandardCharsets.UTF_8.encode(local));
+            return CompletableFuture.completedFuture(true);
         }
-        for (InetSocketAddress neighbor : neighbors) {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "R " + formatCRNString(key);
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
-
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
+        return nearestNodes(HashID.of(key))
+                .thenCompose(replicas -> streamFrom(mayHold(replicaPeers(replicas), key).iterator(), key, pieces));
+    }
 
+    private CompletableFuture<Boolean> streamFrom(Iterator<InetSocketAddress> peers, String key, Consumer<ByteBuffer> pieces) {
+        if (!peers.hasNext()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        InetSocketAddress peer = peers.next();
+        ValueStream stream = new ValueStream(pieces);
+        CompletableFuture<CRNReader> request;
+        try {
+            request = sendRequest(peer, 'R', out -> out.string(key), stream);
+        } catch (Exception e) {
+            return streamFrom(peers, key, pieces);
+        }
+        return request.handle((response, error) -> {
             try {
-                byte[] recvBuf = new byte[1024];
-                DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-                socket.setSoTimeout(1000);
-                socket.receive(response);
-
-                String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-                if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " S ")) {
-                    String[] parts = responseMsg.substring(5).split(" ", 2);
-                    if (parts[0].equals("Y")) {
-                        return key + " = " + parts[1].trim();
-                    }
+                if (stream.started()) {
+                    return error == null ? CompletableFuture.completedFuture(true)
+                            : CompletableFuture.<Boolean>failedFuture(new IOException("The value from " + peer + " broke off", error));
+                }
+                // A value small enough for one datagram comes as usual
+                if (response != null && response.opcode() == 'S' && response.nextChar() == 'Y' && response.nextString()) {
+                    ByteBuffer value = response.buffer().duplicate();
+                    value.limit(response.fieldStart() + response.fieldLength()).position(response.fieldStart());
+                    pieces.accept(value);
+                    return CompletableFuture.completedFuture(true);
+                }
+                return streamFrom(peers, key, pieces);
+            } finally {
+                release(response);
+            }
+        }).thenCompose(next -> next);
+    }
+
+    // Passes on the value in an S response that comes in fragments, without the fields
+    // around it: "txid S Y count " is at the start of the first fragment and a space at
+    // the end of the last.  The message handed on afterwards is just "txid S Y".
+    private static final class ValueStream implements Reassembler.Sink {
+        private final Consumer<ByteBuffer> pieces;
+        private volatile boolean started;
+        private final byte[] header = new byte[6];
+
+        ValueStream(Consumer<ByteBuffer> pieces) {
+            this.pieces = pieces;
+        }
+
+        boolean started() {
+            return started;
+        }
+
+        @Override
+        public void accept(ByteBuffer piece, boolean last) {
+            if (!started) {
+                if (piece.limit() < header.length) {
+                    return;
+                }
+                piece.get(0, header);
+                if (header[3] != 'S' || header[5] != 'Y') {
+                    return;
                 }
-            } catch (SocketTimeoutException ignored) {}
+                int p = header.length + 1;
+                while (p < piece.limit() && piece.get(p) != ' ') {
+                    p++;
+                }
+                piece.position(Math.min(p + 1, piece.limit()));
+                started = true;
+            }
+            if (last) {
+                piece.limit(Math.max(piece.position(), piece.limit() - 1));
+            }
+            if (piece.hasRemaining()) {
+                pieces.accept(piece);
+            }
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            return ByteBuffer.wrap(header);
         }
-        return null;
+    }
+
+    // CRN has no message for more than one key, so the keys aren't sent in one datagram;
+    // instead every search and request is in flight at once, and the whole lookup takes
+    // about as long as the slowest key rather than the sum of them all
+    @Override
+    public CompletableFuture<Map<String, String>> readAll(Collection<String> keys) {
+        Map<String, CompletableFuture<String>> reads = new LinkedHashMap<>();
+        for (String key : keys) {
+            reads.computeIfAbsent(key, this::readAsync);
+        }
+        return collect(reads);
     }
 
     @Override
     public boolean write(String key, String value) throws Exception {
-        localStore.put(key, value);
-        dataStore.put(key, value);
-        boolean acknowledged = false;
+        return join(writeAsync(key, value));
+    }
 
-        for (InetSocketAddress neighbor : neighbors) {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "W " + formatCRNString(key) + formatCRNString(value);
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+    @Override
+    public CompletableFuture<Boolean> writeAsync(String key, String value) {
+        invalidateCached(key);
+        store.put(key, value, KeyValueStore.LOCAL);
+        if (key.startsWith("N:")) {
+            learnAddress(key, value);
+        }
 
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
+        // Only the nodes closest to the key store it
+        CompletableFuture<Boolean> written = nearestNodes(HashID.of(key)).thenCompose(replicas -> replicateWrite(replicas, key, value));
+        // A read that was out while the write was may have cached what came before it
+        return written.whenComplete((stored, error) -> invalidateCached(key));
+    }
 
-            try {
-                byte[] recvBuf = new byte[1024];
-                DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-                socket.setSoTimeout(1000);
-                socket.receive(response);
-
-                String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-                if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " X Y")) {
-                    acknowledged = true;
-                }
-            } catch (SocketTimeoutException ignored) {}
+    // Stores key on replicas, completing with whether enough of them acknowledged it
+    private CompletableFuture<Boolean> replicateWrite(List<NodeAddress> replicas, String key, String value) {
+        int stored = 0;
+        if (replicas.contains(self)) {
+            store.put(key, value, KeyValueStore.REPLICA);
+            stored = 1;
+        }
+        List<InetSocketAddress> peers = replicaPeers(replicas);
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>(peers.size());
+        KeySummaries s = summaries;
+        for (InetSocketAddress peer : peers) {
+            if (s != null) {
+                s.wrote(peer, key);
+            }
+            acks.add(replication.replicate(peer, key, value));
         }
+        // Only the replicas the search found count towards the policy.  The extra peers
+        // replicaPeers adds when it found fewer may not be replicas, and would answer X X.
+        int required = writeAcks.required(Math.max(replicas.size(), 1));
+        return ReplicationPipeline.acknowledged(acks, stored, required);
+    }
 
-        return true;
+    // Writes to the same replica share its replication queue, so they go out together
+    // in one window rather than one round trip after another
+    @Override
+    public CompletableFuture<Map<String, Boolean>> writeAll(Map<String, String> values) {
+        Map<String, CompletableFuture<Boolean>> writes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> pair : values.entrySet()) {
+            writes.put(pair.getKey(), writeAsync(pair.getKey(), pair.getValue()));
+        }
+        return collect(writes);
+    }
+
+    // Completes once every operation has, with their results in the same order
+    private static <T> CompletableFuture<Map<String, T>> collect(Map<String, CompletableFuture<T>> operations) {
+        return CompletableFuture.allOf(operations.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, T> results = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<T>> operation : operations.entrySet()) {
+                results.put(operation.getKey(), operation.getValue().join());
+            }
+            return results;
+        });
     }
 
     @Override
     public boolean CAS(String key, String currentValue, String newValue) throws Exception {
-        if (localStore.containsKey(key) && localStore.get(key).equals(currentValue)) {
-            localStore.put(key, newValue);
-            dataStore.put(key, newValue);
+        return join(CASAsync(key, currentValue, newValue));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> CASAsync(String key, String currentValue, String newValue) {
+        return compareAndSet(key, currentValue, newValue).thenApply(outcome -> outcome == CASOutcome.APPLIED);
+    }
+
+    // CAS on every replica of the key at once, including this node if it is one, which
+    // only succeeds once a quorum of them have made the change.  Unlike CAS it says why
+    // it failed: VALUE_DIFFERS means read the key again, NO_QUORUM that replicas
+    // disagreed or couldn't be reached.  This node's own copy is only changed on success.
+    public CompletableFuture<CASOutcome> compareAndSet(String key, String currentValue, String newValue) {
+        invalidateCached(key);
+        return nearestNodes(HashID.of(key)).thenCompose(replicas -> {
+            char local = replicas.contains(self) ? replicaCAS(key, currentValue, newValue) : 0;
+            List<InetSocketAddress> peers = replicaPeers(replicas);
+            // As with writes, only the replicas found count, not the peers added to make up three
+            int required = AckPolicy.QUORUM.required(Math.max(replicas.size(), 1));
+            return new QuorumCAS(this, key, currentValue, newValue, required).start(local, peers);
+        }).thenApply(outcome -> {
+            if (outcome == CASOutcome.APPLIED && (store.flags(key) & KeyValueStore.LOCAL) != 0) {
+                store.put(key, newValue, KeyValueStore.LOCAL);
+            }
+            Log.debug("[CAS] ", outcome);
+            return outcome;
+        }).whenComplete((outcome, error) -> invalidateCached(key));
+    }
+
+    // Sends one C request; completes with the D result, or 0 if there wasn't one
+    CompletableFuture<Character> requestCAS(InetSocketAddress peer, String key, String currentValue, String newValue) {
+        KeySummaries s = summaries;
+        if (s != null) {
+            s.wrote(peer, key);
         }
+        CompletableFuture<CRNReader> request;
+        try {
+            request = sendRequest(peer, 'C', out -> out.string(key).string(currentValue).string(newValue));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture((char) 0);
+        }
+        return request.handle((response, error) -> {
+            char result = response != null && response.opcode() == 'D' ? response.nextChar() : 0;
+            release(response);
+            return result;
+        });
+    }
 
-        for (InetSocketAddress neighbor : neighbors) {
-            byte[] txid = generateTransactionID();
-            String header = new String(txid, StandardCharsets.UTF_8) + " ";
-            String message = header + "C " + formatCRNString(key) + formatCRNString(currentValue) + formatCRNString(newValue);
-            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+    CompletableFuture<Boolean> replicate(InetSocketAddress peer, String key, String value) {
+        return replication.replicate(peer, key, value);
+    }
 
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, neighbor.getAddress(), neighbor.getPort());
-            socket.send(packet);
+    // Sends one W request for the replication pipeline; completes with true on an X A or X R
+    private CompletableFuture<Boolean> sendWrite(InetSocketAddress peer, String key, String value) {
+        CompletableFuture<CRNReader> response;
+        try {
+            response = sendRequest(peer, 'W', out -> out.string(key).string(value));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return response.handle((reply, error) -> {
+            boolean stored = false;
+            if (reply != null && reply.opcode() == 'X') {
+                char result = reply.nextChar();
+                stored = result == 'A' || result == 'R';
+            }
+            release(reply);
+            return stored;
+        });
+    }
 
-            try {
-                byte[] recvBuf = new byte[1024];
-                DatagramPacket response = new DatagramPacket(recvBuf, recvBuf.length);
-                socket.setSoTimeout(1000);
-                socket.receive(response);
-
-                String responseMsg = new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8);
-                if (responseMsg.startsWith(new String(txid, StandardCharsets.UTF_8) + " D Y")) {
-                    System.out.println("[CAS] Success from neighbor " + neighbor);
-                    return true;
+    // Reads key from its replicas, works out the new value with change and writes it with
+    // compareAndSet, until that succeeds.  change is given null if the key isn't there.
+    // Each failure waits a random time up to a limit that doubles every attempt, so callers
+    // contending for one key take turns instead of all retrying at once.  Completes with
+    // the value written, or fails with a TimeoutException after MAX_UPDATE_ATTEMPTS.
+    public CompletableFuture<String> update(String key, UnaryOperator<String> change) {
+        return updateAttempt(key, change, 0);
+    }
+
+    // The replicas are all asked, as a summary that hasn't caught up would make every CAS fail
+    private CompletableFuture<String> updateAttempt(String key, UnaryOperator<String> change, int attempt) {
+        return readReplicas(key, false).thenCompose(current -> {
+            String next = change.apply(current);
+            return compareAndSet(key, current == null ? "" : current, next).thenCompose(outcome -> {
+                if (outcome == CASOutcome.APPLIED) {
+                    return CompletableFuture.completedFuture(next);
                 }
-            } catch (SocketTimeoutException ignored) {}
-        }
+                if (attempt + 1 >= MAX_UPDATE_ATTEMPTS) {
+                    return CompletableFuture.failedFuture(new TimeoutException(
+                            "Gave up updating " + key + " after " + MAX_UPDATE_ATTEMPTS + " attempts"));
+                }
+                long limit = Math.min(MIN_UPDATE_BACKOFF_MS << Math.min(attempt, 16), MAX_UPDATE_BACKOFF_MS);
+                Executor later = CompletableFuture.delayedExecutor(
+                        ThreadLocalRandom.current().nextLong(limit + 1), TimeUnit.MILLISECONDS);
+                return CompletableFuture.runAsync(() -> {}, later)
+                        .thenCompose(done -> updateAttempt(key, change, attempt + 1));
+            });
+        });
+    }
 
-        System.out.println("[CAS] Failed on all neighbors");
-        return false;
+    private void invalidateCached(String key) {
+        ReadCache cache = readCache;
+        if (cache != null) {
+            cache.invalidate(key);
+        }
     }
 
     public void bootstrap() throws Exception {
-        neighbors.clear();
+        routing.clearSeeds();
         String[] bootstrapIPs = {"10.200.51.18", "10.200.51.19"};
         for (String ip : bootstrapIPs) {
             InetAddress addr = InetAddress.getByName(ip);
             for (int port = 20110; port <= 20116; port++) {
-                if (socket != null && socket.getLocalPort() == port) continue;
-                neighbors.add(new InetSocketAddress(addr, port));
+                if (transport != null && transport.localPort() == port) continue;
+                routing.addSeed(new InetSocketAddress(addr, port));
             }
         }
-        System.out.println("Bootstrap complete. Neighbors:");
-        for (InetSocketAddress n : neighbors) {
-            System.out.println(n.getAddress().getHostAddress() + ":" + n.getPort());
+        Log.info("Bootstrap complete. Neighbors:");
+        for (InetSocketAddress n : routing.seeds()) {
+            Log.info(n.getAddress().getHostAddress() + ":", n.getPort());
         }
     }
 
     public void shutdown() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        LivenessChecker checker = liveness;
+        if (checker != null) {
+            checker.stop();
+        }
+        KeySummaries s = summaries;
+        if (s != null) {
+            s.stop();
+        }
+        metrics.stop();
+        if (transport != null && transport.isOpen()) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                Log.error("[shutdown] Error: ", e.getMessage());
+            }
+        }
+        if (durableStore != null) {
+            try {
+                durableStore.close();
+            } catch (IOException e) {
+                Log.error("[shutdown] Error: ", e.getMessage());
+            }
         }
+        stopped.countDown();
     }
 }
\ No newline at end of file
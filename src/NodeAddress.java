@@ -0,0 +1,31 @@
+import java.net.InetSocketAddress;
+
+// A node's name and hashID together with where it can be reached.
+// The address is null for the local node.
+class NodeAddress {
+
+    final String name;
+    final HashID hashID;
+    final InetSocketAddress address;
+
+    NodeAddress(String name, InetSocketAddress address) {
+        this.name = name;
+        this.hashID = HashID.of(name);
+        this.address = address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof NodeAddress && ((NodeAddress) o).name.equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + (address == null ? "" : " " + address.getAddress().getHostAddress() + ":" + address.getPort());
+    }
+}
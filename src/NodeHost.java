@@ -0,0 +1,177 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Runs many nodes in one JVM on a small, fixed number of threads.
+// Each node still has its own port, but rather than a receive thread per node
+// the channels are registered with a Selector on one of the host's event loops.
+// This is meant for staging and capacity tests with hundreds of nodes.
+//
+// java NodeHost <number of nodes> [first port] [threads]
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NodeHost {
+
+    private final EventLoop[] loops;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<UdpTransport> transports = new ArrayList<>();
+    private int nextLoop;
+
+    public NodeHost(int threads) throws Exception {
+        if (threads < 1) {
+            throw new Exception("A host needs at least one thread");
+        }
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; ++i) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    // Creates a node listening on port and hands it to one of the event loops
+    public synchronized Node startNode(String nodeName, int port) throws Exception {
+        Node node = new Node();
+        node.setNodeName(nodeName);
+        UdpTransport transport = new UdpTransport(port, BufferPool.shared());
+        node.attach(transport);
+        loops[nextLoop++ % loops.length].register(transport, node);
+        nodes.add(node);
+        transports.add(transport);
+        return node;
+    }
+
+    public synchronized List<Node> nodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    public synchronized void shutdown() {
+        for (Node node : nodes) {
+            node.shutdown();
+        }
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    // One selector and the thread that waits on it
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> registrations = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws Exception {
+            selector = Selector.open();
+            thread = new Thread(this, "CRN-host-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Channels have to be registered from the selecting thread
+        void register(UdpTransport transport, Node node) {
+            registrations.add(() -> {
+                try {
+                    transport.register(selector, new Hosted(transport, node));
+                } catch (Exception e) {
+                    Log.error("[NodeHost] Could not register node: ", e.getMessage());
+                }
+            });
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable registration;
+                    while ((registration = registrations.poll()) != null) {
+                        registration.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            ((Hosted) key.attachment()).drain();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.error("[NodeHost] Error: ", e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    // A node registered with an event loop, with the buffer it is receiving into
+    private static class Hosted {
+        private final UdpTransport transport;
+        private final Node node;
+        private ByteBuffer buffer;
+
+        Hosted(UdpTransport transport, Node node) {
+            this.transport = transport;
+            this.node = node;
+            this.buffer = transport.acquire();
+        }
+
+        // Reads everything that is waiting so one busy node can't starve the loop's selector
+        void drain() throws Exception {
+            InetSocketAddress sender;
+            while (transport.isOpen() && (sender = transport.receive(buffer)) != null) {
+                if (node.deliver(buffer, sender)) {
+                    buffer = transport.acquire();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            int numberOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+            int firstPort = args.length > 1 ? Integer.parseInt(args[1]) : 20110;
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+            NodeHost host = new NodeHost(threads);
+            for (int i = 0; i < numberOfNodes; ++i) {
+                host.startNode("N:host" + i, firstPort + i);
+            }
+
+            // Give every node its successor and a few random others, enough for
+            // nearest searches to find their way around the whole network
+            List<Node> nodes = host.nodes();
+            Random r = new Random(23);
+            int links = 1 + (int) Math.ceil(Math.log(numberOfNodes) / Math.log(2));
+            for (int i = 0; i < numberOfNodes; ++i) {
+                for (int l = 0; l < links; ++l) {
+                    int j = l == 0 ? (i + 1) % numberOfNodes : r.nextInt(numberOfNodes);
+                    if (j != i) {
+                        nodes.get(i).learnAddress("N:host" + j, "127.0.0.1:" + (firstPort + j));
+                    }
+                }
+            }
+
+            System.out.println("Hosting " + numberOfNodes + " nodes on ports " + firstPort + "-"
+                    + (firstPort + numberOfNodes - 1) + " with " + threads + " threads");
+            nodes.get(0).handleIncomingMessages(0);
+        } catch (Exception e) {
+            System.err.println("Exception in NodeHost");
+            e.printStackTrace(System.err);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// What a node has been doing: for each request opcode, how many requests it sent,
+// how many were answered or timed out, and how many it was sent by others; how long
+// each peer takes to answer, from the histograms in its PeerStats; and gauges such
+// as the number of requests waiting for a response and the number of keys in the store.
+//
+// Counters are LongAdders, which spread contended increments over several cells,
+// and the latency histograms only increment counts, so recording costs a few
+// atomic adds and no allocation on any thread.  The numbers can be read with
+// snapshot(), through JMX once registered, or written to the log periodically.
+class NodeMetrics implements DynamicMBean {
+
+    // The request opcodes, each with its response opcode below it; a relay is
+    // answered with the response of the request it carries
+    static final String REQUESTS = "GNERWCV";
+    private static final String RESPONSES = "HOFSXD?";
+
+    // The slowest peers are listed in a dump, not all of them
+    private static final int PEERS_IN_DUMP = 10;
+
+    // One thread writes the dumps for every node in the JVM
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CRN-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder[] sent = adders();
+    private final LongAdder[] answered = adders();
+    private final LongAdder[] timedOut = adders();
+    private final LongAdder[] received = adders();
+    private final LongAdder[] dropped = adders();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder lateResponses = new LongAdder();
+    private final LongAdder strayResponses = new LongAdder();
+    private final Map<InetSocketAddress, PeerStats> peers;
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    private volatile String nodeName = "";
+    private volatile ObjectName registeredAs;
+    private volatile ScheduledFuture<?> dumps;
+
+    NodeMetrics(Map<InetSocketAddress, PeerStats> peers) {
+        this.peers = peers;
+    }
+
+    void setNodeName(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    // Adds a value that is read whenever the metrics are; call before they are first read
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    void requestSent(char opcode) {
+        increment(sent, opcode);
+    }
+
+    void responseReceived(char opcode, int attempts) {
+        increment(answered, opcode);
+        if (attempts > 1) {
+            retransmissions.add(attempts - 1);
+        }
+    }
+
+    void requestTimedOut(char opcode, int attempts) {
+        increment(timedOut, opcode);
+        if (attempts > 1) {
+            retransmissions.add(attempts - 1);
+        }
+    }
+
+    void requestReceived(char opcode) {
+        increment(received, opcode);
+    }
+
+    // Over the opcode's limit, or refused by the executor
+    void requestDropped(char opcode) {
+        increment(dropped, opcode);
+    }
+
+    // A response nothing was waiting for: it came after the request timed out, or was a duplicate
+    void lateResponse() {
+        lateResponses.increment();
+    }
+
+    // A response with the transaction ID of a waiting request, but from an address it wasn't sent to
+    void strayResponse() {
+        strayResponses.increment();
+    }
+
+    long sentCount(char opcode) {
+        return sum(sent, opcode);
+    }
+
+    long answeredCount(char opcode) {
+        return sum(answered, opcode);
+    }
+
+    long timedOutCount(char opcode) {
+        return sum(timedOut, opcode);
+    }
+
+    long receivedCount(char opcode) {
+        return sum(received, opcode);
+    }
+
+    long retransmissionCount() {
+        return retransmissions.sum();
+    }
+
+    LatencyHistogram peerLatency(InetSocketAddress peer) {
+        PeerStats stats = peers.get(peer);
+        return stats == null ? null : stats.latency();
+    }
+
+    // Every value by name, in a fixed order.  Peer latencies are in microseconds.
+    Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < REQUESTS.length(); i++) {
+            String pair = pair(i);
+            values.put(pair + ".sent", sent[i].sum());
+            values.put(pair + ".answered", answered[i].sum());
+            values.put(pair + ".timedOut", timedOut[i].sum());
+            values.put(pair + ".received", received[i].sum());
+            values.put(pair + ".dropped", dropped[i].sum());
+        }
+        values.put("retransmissions", retransmissions.sum());
+        values.put("lateResponses", lateResponses.sum());
+        values.put("strayResponses", strayResponses.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<InetSocketAddress, LatencyHistogram> peer : peerLatencies()) {
+            String name = "peer." + address(peer.getKey());
+            LatencyHistogram h = peer.getValue();
+            values.put(name + ".count", h.count());
+            values.put(name + ".p50Us", h.percentileNanos(0.5) / 1000);
+            values.put(name + ".p99Us", h.percentileNanos(0.99) / 1000);
+            values.put(name + ".maxUs", h.maxNanos() / 1000);
+        }
+        return values;
+    }
+
+    // A few lines for a person to read: the opcodes that have been used, the gauges
+    // and the peers that are slowest at the 99th percentile
+    String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append("[metrics] ").append(nodeName).append('\n');
+        for (int i = 0; i < REQUESTS.length(); i++) {
+            long s = sent[i].sum();
+            long r = received[i].sum();
+            if (s == 0 && r == 0) {
+                continue;
+            }
+            out.append(String.format("  %s sent %d answered %d timed out %d, received %d dropped %d%n",
+                    pair(i), s, answered[i].sum(), timedOut[i].sum(), r, dropped[i].sum()));
+        }
+        out.append("  retransmissions ").append(retransmissions.sum())
+                .append(", late responses ").append(lateResponses.sum())
+                .append(", stray responses ").append(strayResponses.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            out.append(", ").append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong());
+        }
+        List<Map.Entry<InetSocketAddress, LatencyHistogram>> slowest = peerLatencies();
+        slowest.sort((a, b) -> Long.compare(b.getValue().percentileNanos(0.99), a.getValue().percentileNanos(0.99)));
+        for (Map.Entry<InetSocketAddress, LatencyHistogram> peer : slowest.subList(0, Math.min(PEERS_IN_DUMP, slowest.size()))) {
+            LatencyHistogram h = peer.getValue();
+            out.append(String.format("%n  %s: %d responses, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    address(peer.getKey()), h.count(), h.percentileNanos(0.5) / 1e6,
+                    h.percentileNanos(0.99) / 1e6, h.maxNanos() / 1e6));
+        }
+        return out.toString();
+    }
+
+    // Writes dump() to the log, at info level, every intervalMs; 0 stops it
+    synchronized void dumpEvery(long intervalMs) {
+        if (dumps != null) {
+            dumps.cancel(false);
+            dumps = null;
+        }
+        if (intervalMs > 0) {
+            dumps = scheduler.scheduleWithFixedDelay(() -> Log.info(dump()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Registers with the platform MBean server as crn:type=Node,name="<node name>"
+    synchronized void register() throws Exception {
+        if (registeredAs != null) {
+            return;
+        }
+        ObjectName name = new ObjectName("crn:type=Node,name=" + ObjectName.quote(nodeName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        registeredAs = name;
+    }
+
+    synchronized void stop() {
+        dumpEvery(0);
+        if (registeredAs != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(registeredAs);
+            } catch (Exception e) {
+                Log.warn("[metrics] Error: ", e.getMessage());
+            }
+            registeredAs = null;
+        }
+    }
+
+    // Every value in snapshot() is a read only attribute
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    // Peers come and go, so the attributes are listed afresh each time
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "CRN node " + nodeName,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+
+    // The peers that have answered enough for a histogram to be kept
+    private List<Map.Entry<InetSocketAddress, LatencyHistogram>> peerLatencies() {
+        List<Map.Entry<InetSocketAddress, LatencyHistogram>> latencies = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, PeerStats> peer : peers.entrySet()) {
+            LatencyHistogram h = peer.getValue().latency();
+            if (h != null) {
+                latencies.add(Map.entry(peer.getKey(), h));
+            }
+        }
+        return latencies;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[REQUESTS.length()];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void increment(LongAdder[] adders, char opcode) {
+        int i = REQUESTS.indexOf(opcode);
+        if (i >= 0) {
+            adders[i].increment();
+        }
+    }
+
+    private static long sum(LongAdder[] adders, char opcode) {
+        int i = REQUESTS.indexOf(opcode);
+        return i < 0 ? 0 : adders[i].sum();
+    }
+
+    private static String pair(int i) {
+        return REQUESTS.charAt(i) + "/" + RESPONSES.charAt(i);
+    }
+
+    private static String address(InetSocketAddress address) {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.TimeUnit;
+
+// What we know about how a peer responds.  Round trip times are smoothed the
+// way TCP does it (Jacobson/Karels), giving each peer its own retransmission
+// timeout, and a peer that keeps timing out is left alone for a while
+// (a circuit breaker) so it stops costing every operation a full timeout.
+// Peers that answer regularly also get a histogram of their round trip times.
+class PeerStats {
+
+    // Used until the first round trip has been measured
+    static final long INITIAL_TIMEOUT_MS = 200;
+    static final long MIN_TIMEOUT_MS = 5;
+    static final long MAX_TIMEOUT_MS = 1000;
+
+    private static final long DEFAULT_HEDGE_MS = 50;
+    private static final long MIN_HEDGE_MS = 2;
+
+    private static final int FAILURES_BEFORE_OPEN = 3;
+    private static final long MIN_COOLDOWN_MS = 1000;
+    private static final long MAX_COOLDOWN_MS = 60_000;
+
+    // Most peers only answer a nearest search or two, so a histogram is only kept once
+    // a peer has given this many samples.  They are small: buckets up to 25% wide, in
+    // microseconds, up to the longest a request can take.
+    private static final int SAMPLES_BEFORE_HISTOGRAM = 4;
+    private static final int HISTOGRAM_SUB_BITS = 2;
+    private static final int HISTOGRAM_SHIFT = 10;
+    private static final long HISTOGRAM_MAX_NANOS = TimeUnit.SECONDS.toNanos(4);
+
+    // Smoothed round trip time and its mean deviation, -1 until the first sample
+    private double srttMs = -1;
+    private double rttVarMs;
+
+    private boolean answered;
+    private long lastResponse;
+    private int consecutiveTimeouts;
+    private long cooldownMs;
+    private long openUntil;
+    // Once the cooldown is over a single request is let through to see if the peer is back
+    private boolean probing;
+    private int samples;
+    private volatile LatencyHistogram latency;
+
+    // Only responses to requests that were sent once are used as samples, as it isn't
+    // known which copy a response to a retransmitted request is answering (Karn's algorithm)
+    synchronized void recordResponse(long nanos, boolean sample) {
+        if (sample) {
+            if (latency != null) {
+                latency.record(nanos);
+            } else if (++samples >= SAMPLES_BEFORE_HISTOGRAM) {
+                latency = new LatencyHistogram(HISTOGRAM_SUB_BITS, HISTOGRAM_SHIFT, HISTOGRAM_MAX_NANOS);
+                latency.record(nanos);
+            }
+            double ms = nanos / 1_000_000.0;
+            if (srttMs < 0) {
+                srttMs = ms;
+                rttVarMs = ms / 2;
+            } else {
+                rttVarMs = 0.75 * rttVarMs + 0.25 * Math.abs(srttMs - ms);
+                srttMs = 0.875 * srttMs + 0.125 * ms;
+            }
+        }
+        answered = true;
+        lastResponse = System.nanoTime();
+        consecutiveTimeouts = 0;
+        cooldownMs = 0;
+        openUntil = 0;
+        probing = false;
+    }
+
+    // sent is the System.nanoTime() the timed out request was first sent at.  If the peer
+    // has answered anything since then it is alive, just losing packets or overloaded,
+    // and the timeout doesn't count towards opening the circuit.
+    synchronized void recordTimeout(long sent) {
+        probing = false;
+        if (answered && lastResponse - sent > 0) {
+            return;
+        }
+        // A peer that has never answered is given up on after its first timeout
+        if (++consecutiveTimeouts >= FAILURES_BEFORE_OPEN || !answered) {
+            cooldownMs = cooldownMs == 0 ? MIN_COOLDOWN_MS : Math.min(cooldownMs * 2, MAX_COOLDOWN_MS);
+            openUntil = System.currentTimeMillis() + cooldownMs;
+        }
+    }
+
+    // A request that was cancelled tells us nothing either way
+    synchronized void recordCancelled() {
+        probing = false;
+    }
+
+    // Whether a request may be sent to this peer now.  While the circuit is open this
+    // is false; afterwards it is true once, for a probe, until that probe is answered.
+    synchronized boolean allowRequest() {
+        if (openUntil == 0) {
+            return true;
+        }
+        if (probing || System.currentTimeMillis() < openUntil) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    // Round trip times, once the peer has answered enough requests for one to be kept; otherwise null
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    // How long to wait before retransmitting: srtt + 4 * rttvar
+    synchronized long timeoutMs() {
+        if (srttMs < 0) {
+            return INITIAL_TIMEOUT_MS;
+        }
+        long rto = (long) Math.ceil(srttMs + 4 * rttVarMs);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, rto));
+    }
+
+    // How long to wait for this peer before trying another one as well
+    synchronized long hedgeDelayMs() {
+        if (srttMs < 0) {
+            return DEFAULT_HEDGE_MS;
+        }
+        return Math.max(MIN_HEDGE_MS, (long) Math.ceil(srttMs * 2));
+    }
+}
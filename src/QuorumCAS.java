@@ -0,0 +1,173 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// A compare-and-swap (C) sent to all of a key's replicas at once, which only counts
+// as done once a quorum of them have made the change.  Each replica's own CAS is
+// atomic, so of two CASes racing from the same value at most one can reach a
+// quorum; the other fails rather than overwriting it.
+//
+// A replica that didn't have the key adds it whatever the expected value was (A),
+// which says nothing about the key's current value.  Those answers only count when
+// no replica has the key, so the key is new; otherwise a quorum must have swapped
+// the value (R).
+//
+// The outcome is known as soon as a quorum is reached or can no longer be.  Once
+// every replica has answered or timed out they are brought back into line: if the
+// change was applied, replicas that refused it are sent the new value with a write,
+// and if it wasn't, those that made it are asked to change it back.  Replicas that
+// added the key are changed to the value the others had, read from one that refused
+// if none swapped, so a failed CAS doesn't leave a value for reads to find.  If no
+// replica that answered held the key there is nothing to change them to, and CRN has
+// no way to remove a key; that is only when too few answered to tell, so the outcome
+// is NO_QUORUM and, as with a write that times out, the value may or may not stay.
+class QuorumCAS {
+
+    private final Node node;
+    private final String key;
+    private final String expected;
+    private final String value;
+    private final int required;
+    private final CompletableFuture<CASOutcome> outcome = new CompletableFuture<>();
+
+    // Replicas that swapped the value (R), added the key (A) or held something else (N)
+    private final List<InetSocketAddress> swapped = new ArrayList<>();
+    private final List<InetSocketAddress> added = new ArrayList<>();
+    private final List<InetSocketAddress> refused = new ArrayList<>();
+    private boolean swappedHere;
+    private boolean addedHere;
+    private boolean refusedHere;
+    private int swappedCount;
+    private int addedCount;
+    private int refusedCount;
+    private int outstanding;
+
+    QuorumCAS(Node node, String key, String expected, String value, int required) {
+        this.node = node;
+        this.key = key;
+        this.expected = expected;
+        this.value = value;
+        this.required = required;
+    }
+
+    // localResult is this node's own answer as one of the replicas, or 0 if it isn't one
+    CompletableFuture<CASOutcome> start(char localResult, List<InetSocketAddress> peers) {
+        boolean finished;
+        synchronized (this) {
+            outstanding = peers.size();
+            if (localResult != 0) {
+                record(null, localResult);
+            }
+            decide();
+            finished = outstanding == 0;
+        }
+        if (finished) {
+            reconcile();
+        }
+        for (InetSocketAddress peer : peers) {
+            node.requestCAS(peer, key, expected, value).whenComplete((result, error) -> answered(peer, error == null ? result : 0));
+        }
+        return outcome;
+    }
+
+    private void answered(InetSocketAddress peer, char result) {
+        boolean finished;
+        synchronized (this) {
+            outstanding--;
+            record(peer, result);
+            decide();
+            finished = outstanding == 0;
+        }
+        if (finished) {
+            reconcile();
+        }
+    }
+
+    // peer is null for this node's own copy.  0 is a replica that didn't answer, and X
+    // one that doesn't think it should hold the key; neither counts either way.
+    private void record(InetSocketAddress peer, char result) {
+        switch (result) {
+            case 'R':
+                swappedCount++;
+                if (peer == null) {
+                    swappedHere = true;
+                } else {
+                    swapped.add(peer);
+                }
+                break;
+            case 'A':
+                addedCount++;
+                if (peer == null) {
+                    addedHere = true;
+                } else {
+                    added.add(peer);
+                }
+                break;
+            case 'N':
+                refusedCount++;
+                if (peer == null) {
+                    refusedHere = true;
+                } else {
+                    refused.add(peer);
+                }
+                break;
+            default:
+        }
+    }
+
+    private void decide() {
+        if (outcome.isDone()) {
+            return;
+        }
+        // The key may still turn out to be new while every answer so far has been A
+        boolean couldBeNew = swappedCount == 0 && refusedCount == 0 && addedCount + outstanding >= required;
+        if (swappedCount >= required || (couldBeNew && outstanding == 0)) {
+            outcome.complete(CASOutcome.APPLIED);
+        } else if (swappedCount + outstanding < required && !couldBeNew) {
+            outcome.complete(swappedCount == 0 && refusedCount > 0 ? CASOutcome.VALUE_DIFFERS : CASOutcome.NO_QUORUM);
+        }
+    }
+
+    // Called once, after the last replica has answered, when nothing else touches the lists
+    private void reconcile() {
+        if (outcome.getNow(null) == CASOutcome.APPLIED) {
+            for (InetSocketAddress peer : refused) {
+                node.replicate(peer, key, value);
+            }
+            return;
+        }
+        if (swappedHere) {
+            node.replicaCAS(key, value, expected);
+        }
+        for (InetSocketAddress peer : swapped) {
+            node.requestCAS(peer, key, value, expected);
+        }
+        if (addedCount == 0) {
+            return;
+        }
+        // A replica that swapped the value shows the key's value was the expected one;
+        // otherwise it is whatever the replicas that refused hold
+        CompletableFuture<String> held;
+        if (swappedCount > 0) {
+            held = CompletableFuture.completedFuture(expected);
+        } else if (refusedHere) {
+            held = CompletableFuture.completedFuture(node.replicaValue(key));
+        } else if (!refused.isEmpty()) {
+            held = node.readFrom(refused, key);
+        } else {
+            return;
+        }
+        held.thenAccept(previous -> {
+            if (previous == null) {
+                return;
+            }
+            if (addedHere) {
+                node.replicaCAS(key, value, previous);
+            }
+            for (InetSocketAddress peer : added) {
+                node.requestCAS(peer, key, value, previous);
+            }
+        });
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// A near-cache of values read from other nodes, so keys that are read over and
+// over don't go out to the network every time.  Entries live for a fixed time
+// and the least recently used are evicted once the cache holds more than its
+// byte budget.  A key that wasn't found anywhere is remembered too, but only
+// briefly, as it may well be written soon.
+//
+// A read that was already going out when this node wrote the key could otherwise
+// cache what it found from before the write.  So each invalidation bumps a counter
+// for the key, and a read only caches what it found if its key's counter hasn't
+// changed since the read took stamp.  Keys share STAMPS counters by hash, which
+// only ever means a read isn't cached when it could have been.
+class ReadCache {
+
+    // A rough size for an entry's map node, object headers and fields
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int STAMPS = 1024;
+
+    private final long maxBytes;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    // In access order, so the least recently used entry is first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private final long[] stamps = new long[STAMPS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ReadCache(long maxBytes, long ttlMs, long negativeTtlMs) {
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+    }
+
+    // Returns the cached entry for key, or null if there isn't a live one
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    // Taken before reading key from other nodes, for put
+    synchronized long stamp(String key) {
+        return stamps[stripe(key)];
+    }
+
+    // value is null when the key wasn't found.  It isn't cached if key has been
+    // invalidated since stamp was taken.
+    synchronized void put(String key, String value, long stamp) {
+        if (stamps[stripe(key)] != stamp) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(value, now + (value == null ? negativeTtlMs : ttlMs), size(key, value));
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        stamps[stripe(key)]++;
+        remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long byteSize() {
+        return bytes;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7FFFFFFF) % STAMPS;
+    }
+
+    private static int size(String key, String value) {
+        return ENTRY_OVERHEAD + 2 * key.length() + (value == null ? 0 : 2 * value.length());
+    }
+
+    static final class Entry {
+        // null if the key wasn't found
+        final String value;
+        final long expires;
+        final int size;
+
+        Entry(String value, long expires, int size) {
+            this.value = value;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+}
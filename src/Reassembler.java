@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Puts messages sent in fragments by a Fragmenter back together.  Each fragment is
+// copied out of its datagram as it arrives and the message is handed on once they
+// are all in.  Until then the sender is sent an M message listing the fragments
+// still missing whenever none have arrived for NACK_DELAY_MS, and straight away when
+// the last one arrives with some before it missing, as fragments are sent in order.
+//
+// The bytes held for unfinished messages are limited; a fragment that would go over
+// the limit is dropped and asked for again later.  Each unfinished message counts
+// its table of pieces, eight bytes a fragment, and PARTIAL_OVERHEAD as well as the
+// pieces themselves, and a sender can have at most MAX_PARTIALS_PER_SENDER at once,
+// so fragments claiming to start many large messages can't take the memory.  Every
+// fragment but the last is FRAGMENT_BYTES long, as Fragmenter sends them; others are
+// dropped, so a message can't be spread over more fragments than it needs.  A message that gets no fragments
+// through MAX_SILENT_NACKS requests in a row is given up on and its fragments freed,
+// as is one the node no longer wants, such as the response to a request it gave up on.
+//
+// Messages that have been put together are remembered for a while, so a fragment of
+// one sent again, because its sender hadn't heard back yet, isn't taken for a new one.
+//
+// A response can be streamed instead: given a Sink before the request is sent, each
+// fragment is passed to it as soon as the ones before it have been, and only those
+// that arrive out of order are held.
+class Reassembler {
+
+    static final long NACK_DELAY_MS = 50;
+    static final int MAX_SILENT_NACKS = 10;
+    static final long DEFAULT_MAX_BYTES = 32L << 20;
+    static final int FINISHED_CAPACITY = 4096;
+    static final long FINISHED_EXPIRY_MS = 10_000;
+    static final int MAX_PARTIALS_PER_SENDER = 64;
+    private static final int PARTIAL_OVERHEAD = 128;
+
+    // Takes a streamed message a fragment at a time, in order, on the receiving thread
+    interface Sink {
+        // piece is only valid during the call
+        void accept(ByteBuffer piece, boolean last);
+
+        // The message to hand on once every fragment has been taken
+        ByteBuffer finish();
+    }
+
+    private final Transport transport;
+    private final long maxBytes;
+    private final Predicate<Fragmenter.Key> wanted;
+    private final Map<Fragmenter.Key, Partial> partials = new HashMap<>();
+    private final Map<InetSocketAddress, Integer> partialsBySender = new HashMap<>();
+    private final Map<Fragmenter.Key, Sink> sinks = new ConcurrentHashMap<>();
+    // When each message was finished, oldest first
+    private final LinkedHashMap<Fragmenter.Key, Long> finished = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Fragmenter.Key, Long> eldest) {
+            return size() > FINISHED_CAPACITY;
+        }
+    };
+    private long bytesHeld;
+
+    Reassembler(Transport transport, Predicate<Fragmenter.Key> wanted) {
+        this(transport, DEFAULT_MAX_BYTES, wanted);
+    }
+
+    Reassembler(Transport transport, long maxBytes, Predicate<Fragmenter.Key> wanted) {
+        this.transport = transport;
+        this.maxBytes = maxBytes;
+        this.wanted = wanted;
+    }
+
+    // Streams the response from sender with this transaction ID and opcode to sink
+    void expect(InetSocketAddress sender, int txid, char opcode, Sink sink) {
+        sinks.put(new Fragmenter.Key(sender, txid, opcode), sink);
+    }
+
+    // Stops expecting a response, dropping whatever has arrived of it
+    void forget(InetSocketAddress sender, int txid, char opcode) {
+        Fragmenter.Key key = new Fragmenter.Key(sender, txid, opcode);
+        sinks.remove(key);
+        synchronized (this) {
+            Partial partial = partials.get(key);
+            if (partial != null) {
+                remove(partial);
+            }
+        }
+    }
+
+    // Whether the message was put together recently
+    synchronized boolean finished(InetSocketAddress sender, int txid, char opcode) {
+        long now = System.currentTimeMillis();
+        Iterator<Long> i = finished.values().iterator();
+        while (i.hasNext() && now - i.next() > FINISHED_EXPIRY_MS) {
+            i.remove();
+        }
+        return finished.containsKey(new Fragmenter.Key(sender, txid, opcode));
+    }
+
+    // in is positioned after the opcode of the message the fragment is from.  Returns the
+    // whole message once the last of its fragments has arrived, in a buffer of its own,
+    // or null until then.
+    ByteBuffer fragment(CRNReader in, int txid, char opcode, InetSocketAddress sender) {
+        int seq = in.nextInt();
+        int count = in.nextInt();
+        if (seq < 0 || count < 2 || seq >= count || !in.nextTail() || in.fieldLength() == 0
+                || in.fieldLength() > Fragmenter.FRAGMENT_BYTES
+                || (seq < count - 1 && in.fieldLength() < Fragmenter.FRAGMENT_BYTES)
+                || (long) count * Fragmenter.FRAGMENT_BYTES > Fragmenter.MAX_MESSAGE_BYTES + Fragmenter.FRAGMENT_BYTES) {
+            return null;
+        }
+        Fragmenter.Key key = new Fragmenter.Key(sender, txid, opcode);
+        byte[] piece = new byte[in.fieldLength()];
+        in.buffer().get(in.fieldStart(), piece);
+
+        List<byte[]> ready = null;
+        Partial partial;
+        boolean complete;
+        synchronized (this) {
+            partial = partials.get(key);
+            if (partial == null) {
+                int table = count * 8 + PARTIAL_OVERHEAD;
+                if (finished.containsKey(key) || bytesHeld + table + piece.length > maxBytes
+                        || partialsBySender.getOrDefault(sender, 0) >= MAX_PARTIALS_PER_SENDER) {
+                    return null;
+                }
+                partial = new Partial(key, count, sinks.remove(key));
+                partial.held = table;
+                bytesHeld += table;
+                partials.put(key, partial);
+                partialsBySender.merge(sender, 1, Integer::sum);
+                schedule(partial);
+            }
+            if (partial.pieces.length != count || seq < partial.delivered || partial.pieces[seq] != null
+                    || bytesHeld + piece.length > maxBytes) {
+                return null;
+            }
+            partial.pieces[seq] = piece;
+            partial.received++;
+            partial.held += piece.length;
+            partial.length += piece.length;
+            partial.lastArrival = System.currentTimeMillis();
+            partial.silentNacks = 0;
+            bytesHeld += piece.length;
+            if (partial.sink != null) {
+                // The pieces now in order are handed over and freed
+                ready = new ArrayList<>();
+                while (partial.delivered < count && partial.pieces[partial.delivered] != null) {
+                    byte[] next = partial.pieces[partial.delivered];
+                    partial.pieces[partial.delivered++] = null;
+                    partial.held -= next.length;
+                    bytesHeld -= next.length;
+                    ready.add(next);
+                }
+            }
+            complete = partial.received == count;
+            if (complete) {
+                remove(partial);
+                finished.put(key, partial.lastArrival);
+            }
+        }
+        if (ready != null) {
+            int first = partial.delivered - ready.size();
+            for (int i = 0; i < ready.size(); i++) {
+                partial.sink.accept(ByteBuffer.wrap(ready.get(i)), first + i == count - 1);
+            }
+        }
+        if (complete) {
+            return partial.sink != null ? partial.sink.finish() : partial.join();
+        }
+        if (seq == count - 1) {
+            requestMissing(partial);
+        }
+        return null;
+    }
+
+    synchronized long bytesHeld() {
+        return bytesHeld;
+    }
+
+    synchronized int size() {
+        return partials.size();
+    }
+
+    // Frees a message's pieces and its table; the caller holds the lock
+    private void remove(Partial partial) {
+        partials.remove(partial.key);
+        bytesHeld -= partial.held;
+        partialsBySender.computeIfPresent(partial.key.destination, (sender, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void schedule(Partial partial) {
+        CompletableFuture.delayedExecutor(NACK_DELAY_MS, TimeUnit.MILLISECONDS).execute(() -> check(partial));
+    }
+
+    // Asks again for what is missing if nothing has arrived for a while, or gives up on it
+    private void check(Partial partial) {
+        boolean silent;
+        synchronized (this) {
+            if (partials.get(partial.key) != partial) {
+                return;
+            }
+            silent = System.currentTimeMillis() - partial.lastArrival >= NACK_DELAY_MS;
+            if (!wanted.test(partial.key) || (silent && ++partial.silentNacks > MAX_SILENT_NACKS)) {
+                remove(partial);
+                Log.debug("[fragments] Gave up on a message from ", partial.key.destination);
+                return;
+            }
+        }
+        if (silent) {
+            requestMissing(partial);
+        }
+        schedule(partial);
+    }
+
+    private void requestMissing(Partial partial) {
+        ByteBuffer buffer = transport.acquire();
+        try {
+            CRNWriter out = new CRNWriter().reset(buffer).header(partial.key.txid, 'M').character(partial.key.opcode);
+            int listed = 0;
+            synchronized (this) {
+                for (int seq = partial.delivered; seq < partial.pieces.length && listed < Fragmenter.MAX_MISSING_LISTED; seq++) {
+                    if (partial.pieces[seq] == null) {
+                        out.decimal(seq);
+                        listed++;
+                    }
+                }
+            }
+            if (listed > 0) {
+                transport.send(out.finish(), partial.key.destination);
+            }
+        } catch (IOException e) {
+            Log.debug("[fragments] Error: ", e.getMessage());
+        } finally {
+            transport.release(buffer);
+        }
+    }
+
+    private static final class Partial {
+        final Fragmenter.Key key;
+        final byte[][] pieces;
+        final Sink sink;
+        int received;
+        // Pieces before this have been passed to the sink
+        int delivered;
+        // The pieces still held, and the table of them
+        int held;
+        int length;
+        long lastArrival;
+        int silentNacks;
+
+        Partial(Fragmenter.Key key, int count, Sink sink) {
+            this.key = key;
+            this.pieces = new byte[count][];
+            this.sink = sink;
+        }
+
+        ByteBuffer join() {
+            ByteBuffer message = ByteBuffer.allocate(length);
+            for (byte[] piece : pieces) {
+                message.put(piece);
+            }
+            return message.flip();
+        }
+    }
+}
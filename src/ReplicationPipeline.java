@@ -0,0 +1,137 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sends write (W) requests to each peer through its own queue, keeping up to
+// `window` of them in flight at once rather than one round trip per write.
+// While a write is still queued, a newer write to the same key replaces its
+// value, so only the latest one is sent and both callers get its result.
+class ReplicationPipeline {
+
+    static final int DEFAULT_WINDOW = 32;
+
+    // Sends one W request; completes with true if the peer stored the value
+    interface Writer {
+        CompletableFuture<Boolean> write(InetSocketAddress peer, String key, String value);
+    }
+
+    private final Writer writer;
+    private final int window;
+    private final Map<InetSocketAddress, Lane> lanes = new ConcurrentHashMap<>();
+
+    ReplicationPipeline(Writer writer, int window) {
+        this.writer = writer;
+        this.window = window;
+    }
+
+    // Completes with true if the peer stored the value (an X A or X R response)
+    CompletableFuture<Boolean> replicate(InetSocketAddress peer, String key, String value) {
+        return lanes.computeIfAbsent(peer, Lane::new).enqueue(key, value);
+    }
+
+    // Completes with true once `required` of acks (plus those already counted) are true,
+    // or with false as soon as that can no longer happen
+    static CompletableFuture<Boolean> acknowledged(List<CompletableFuture<Boolean>> acks, int alreadyAcked, int required) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (alreadyAcked >= required) {
+            result.complete(true);
+            return result;
+        }
+        if (alreadyAcked + acks.size() < required) {
+            result.complete(false);
+            return result;
+        }
+        int[] counts = { alreadyAcked, acks.size() };
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.whenComplete((stored, error) -> {
+                synchronized (counts) {
+                    counts[1]--;
+                    if (Boolean.TRUE.equals(stored)) {
+                        counts[0]++;
+                    }
+                    if (counts[0] >= required) {
+                        result.complete(true);
+                    } else if (counts[0] + counts[1] < required) {
+                        result.complete(false);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private static final class PendingWrite {
+        final String key;
+        String value;
+        final List<CompletableFuture<Boolean>> waiters = new ArrayList<>(1);
+
+        PendingWrite(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final class Lane {
+        private final InetSocketAddress peer;
+        private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+        private final Map<String, PendingWrite> queuedByKey = new HashMap<>();
+        private int inFlight;
+
+        Lane(InetSocketAddress peer) {
+            this.peer = peer;
+        }
+
+        CompletableFuture<Boolean> enqueue(String key, String value) {
+            CompletableFuture<Boolean> acked = new CompletableFuture<>();
+            synchronized (this) {
+                PendingWrite write = queuedByKey.get(key);
+                if (write == null) {
+                    write = new PendingWrite(key, value);
+                    queuedByKey.put(key, write);
+                    queue.add(write);
+                } else {
+                    write.value = value;
+                }
+                write.waiters.add(acked);
+            }
+            pump();
+            return acked;
+        }
+
+        // Sends as much of the queue as the window allows.  Sending happens outside the
+        // lock, as a response (or an immediate failure) can come back before send returns.
+        private void pump() {
+            List<PendingWrite> next = new ArrayList<>();
+            synchronized (this) {
+                while (inFlight < window && !queue.isEmpty()) {
+                    PendingWrite write = queue.poll();
+                    queuedByKey.remove(write.key);
+                    next.add(write);
+                    inFlight++;
+                }
+            }
+            for (PendingWrite write : next) {
+                send(write);
+            }
+        }
+
+        private void send(PendingWrite write) {
+            writer.write(peer, write.key, write.value).whenComplete((stored, error) -> finish(write, Boolean.TRUE.equals(stored)));
+        }
+
+        private void finish(PendingWrite write, boolean stored) {
+            synchronized (this) {
+                inFlight--;
+            }
+            for (CompletableFuture<Boolean> waiter : write.waiters) {
+                waiter.complete(stored);
+            }
+            pump();
+        }
+    }
+}
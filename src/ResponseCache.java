@@ -0,0 +1,132 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the responses recently sent to requests, by sender and transaction ID,
+// so a retransmitted request can be answered with the same bytes instead of being
+// run again.  This matters for writes and especially CAS, where running a request
+// twice can give a different answer the second time.
+// Entries expire after a while and the oldest are dropped when the cache is full.
+class ResponseCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    // Comfortably longer than a client's whole retransmission schedule
+    static final long DEFAULT_EXPIRY_MS = 10_000;
+
+    private final int capacity;
+    private final long expiryMs;
+    private final LinkedHashMap<Key, Entry> entries;
+
+    ResponseCache(int capacity, long expiryMs) {
+        this.capacity = capacity;
+        this.expiryMs = expiryMs;
+        this.entries = new LinkedHashMap<>(capacity * 4 / 3 + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > ResponseCache.this.capacity;
+            }
+        };
+    }
+
+    // A hash of a request's fields from `from` to the end of the message, so an unrelated
+    // request that happens to reuse a transaction ID isn't mistaken for a retransmission
+    static int fingerprint(ByteBuffer message, int from) {
+        int h = 1;
+        for (int i = from; i < message.limit(); i++) {
+            h = 31 * h + message.get(i);
+        }
+        return h;
+    }
+
+    // Returns null if this request hasn't been seen, and marks it as being handled;
+    // the caller must then call complete() or abandon().  Otherwise returns the earlier
+    // entry, whose reply is null while the first copy is still being handled.
+    synchronized Entry begin(InetSocketAddress sender, int txid, int fingerprint) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Key key = new Key(sender, txid);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.fingerprint == fingerprint) {
+            return entry;
+        }
+        entries.remove(key);
+        entries.put(key, new Entry(fingerprint, now));
+        return null;
+    }
+
+    // Keeps a copy of the response that was sent, from the start of the buffer to its limit
+    synchronized void complete(InetSocketAddress sender, int txid, ByteBuffer response) {
+        Entry entry = entries.get(new Key(sender, txid));
+        if (entry != null) {
+            byte[] reply = new byte[response.limit()];
+            response.get(0, reply);
+            entry.reply = reply;
+        }
+    }
+
+    // The response sent to a request, or null if it hasn't been answered or has been forgotten
+    synchronized byte[] reply(InetSocketAddress sender, int txid) {
+        expire(System.currentTimeMillis());
+        Entry entry = entries.get(new Key(sender, txid));
+        return entry == null ? null : entry.reply;
+    }
+
+    // No response was sent, so a retransmission should be handled afresh
+    synchronized void abandon(InetSocketAddress sender, int txid) {
+        Key key = new Key(sender, txid);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.reply == null) {
+            entries.remove(key);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // Entries are kept in the order they were added, so the expired ones are at the front
+    private void expire(long now) {
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext() && now - i.next().created > expiryMs) {
+            i.remove();
+        }
+    }
+
+    static final class Entry {
+        final int fingerprint;
+        final long created;
+        volatile byte[] reply;
+
+        Entry(int fingerprint, long created) {
+            this.fingerprint = fingerprint;
+            this.created = created;
+        }
+    }
+
+    private static final class Key {
+        private final InetSocketAddress sender;
+        private final int txid;
+
+        Key(InetSocketAddress sender, int txid) {
+            this.sender = sender;
+            this.txid = txid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return txid == k.txid && sender.equals(k.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sender.hashCode() + txid;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sends a request and resends it, with the same transaction ID, each time its
+// timeout passes without an answer, doubling the timeout every time.
+// Whichever copy is answered first completes the request and any later answer
+// is ignored, so a lost packet costs one timeout rather than a failed operation.
+class Retransmitter {
+
+    static final int MAX_ATTEMPTS = 3;
+
+    // However fast a peer usually is, a request isn't given up on sooner than this,
+    // so a burst of load on the peer isn't mistaken for it having gone away
+    static final long MIN_TOTAL_TIMEOUT_MS = 500;
+
+    private final Transport transport;
+    private final InetSocketAddress destination;
+    private final CompletableFuture<?> response;
+    private ByteBuffer request;
+    private long timeoutMs;
+    private int attempts;
+    // Guards the buffer against being released while it is being sent.  Not synchronized,
+    // as a blocked send would pin a virtual thread to its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Takes ownership of the encoded request buffer and releases it once the request is done
+    Retransmitter(Transport transport, ByteBuffer request, InetSocketAddress destination,
+                  CompletableFuture<?> response, long timeoutMs) {
+        this.transport = transport;
+        this.request = request;
+        this.destination = destination;
+        this.response = response;
+        this.timeoutMs = timeoutMs;
+    }
+
+    // The longest a request can take when the first timeout is timeoutMs
+    static long totalTimeout(long timeoutMs) {
+        long total = 0;
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            total += Math.min(timeoutMs << i, PeerStats.MAX_TIMEOUT_MS);
+        }
+        return Math.max(total, MIN_TOTAL_TIMEOUT_MS);
+    }
+
+    void start() throws IOException {
+        response.whenComplete((reply, error) -> finish());
+        lock.lock();
+        try {
+            send();
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    int attempts() {
+        lock.lock();
+        try {
+            return attempts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send() throws IOException {
+        request.rewind();
+        attempts++;
+        transport.send(request, destination);
+    }
+
+    private void schedule() {
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS).execute(this::retransmit);
+    }
+
+    private void retransmit() {
+        lock.lock();
+        try {
+            if (request == null || response.isDone() || attempts >= MAX_ATTEMPTS) {
+                return;
+            }
+            send();
+            timeoutMs = Math.min(timeoutMs * 2, PeerStats.MAX_TIMEOUT_MS);
+        } catch (IOException e) {
+            return;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    private void finish() {
+        lock.lock();
+        try {
+            if (request != null) {
+                transport.release(request);
+                request = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The other nodes this node knows, kept in buckets by their distance from it.
+// Each distance holds at most BUCKET_SIZE nodes, as the RFC suggests, so the
+// table stays small however large the network is while still knowing many
+// nodes nearby and a few far away, which is what nearest searches need.
+//
+// A full bucket keeps the nodes it already has: nodes that have been up for a
+// while are likely to stay up.  Newcomers wait as replacements and take the
+// place of a member once it has stopped answering.
+//
+// Seeds are addresses we have been given without a name, such as the bootstrap
+// list.  They are used until their names are learnt.
+class RoutingTable {
+
+    static final int BUCKET_SIZE = 3;
+    // Timeouts in a row, with no answer in between, before a node can be dropped
+    static final int FAILURES_BEFORE_EVICT = 3;
+    private static final int MAX_SEEDS = 32;
+
+    private final HashID self;
+    // Indexed by distance; a bucket is only created once something is put in it
+    private final Bucket[] buckets = new Bucket[257];
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<InetSocketAddress, Entry> byAddress = new HashMap<>();
+    private final LinkedHashMap<InetSocketAddress, Entry> seeds = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    RoutingTable(HashID self) {
+        this.self = self;
+    }
+
+    // Adds a node, or moves it if it is known at another address.
+    // Returns false if its bucket is full and it is waiting as a replacement.
+    boolean add(NodeAddress node) {
+        lock.writeLock().lock();
+        try {
+            Entry seed = seeds.remove(node.address);
+            if (seed != null) {
+                byAddress.remove(node.address);
+            }
+            Entry known = byName.get(node.name);
+            if (known != null) {
+                if (!known.node.address.equals(node.address)) {
+                    byAddress.remove(known.node.address);
+                    known.node = node;
+                    known.failures = 0;
+                    byAddress.put(node.address, known);
+                }
+                return true;
+            }
+            Bucket bucket = bucket(self.distance(node.hashID));
+            Entry entry = new Entry(node);
+            if (seed != null) {
+                entry.lastSeen = seed.lastSeen;
+                entry.heard = seed.heard;
+            }
+            if (bucket.members.size() < BUCKET_SIZE) {
+                bucket.members.add(entry);
+                index(entry);
+                return true;
+            }
+            bucket.addReplacement(entry);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // An address to try until we know which node is there
+    void addSeed(InetSocketAddress address) {
+        lock.writeLock().lock();
+        try {
+            if (byAddress.containsKey(address)) {
+                return;
+            }
+            if (seeds.size() >= MAX_SEEDS) {
+                Iterator<Entry> oldest = seeds.values().iterator();
+                byAddress.remove(oldest.next().address());
+                oldest.remove();
+            }
+            Entry entry = new Entry(address);
+            seeds.put(address, entry);
+            byAddress.put(address, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Anything received from an address shows it is up
+    void heardFrom(InetSocketAddress address) {
+        lock.readLock().lock();
+        try {
+            Entry entry = byAddress.get(address);
+            if (entry != null) {
+                entry.lastSeen = System.nanoTime();
+                entry.heard = true;
+                entry.failures = 0;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // sent is the System.nanoTime() the request that timed out was sent at.  A node that
+    // has kept timing out is dropped if there is a replacement for it; a seed is dropped
+    // once enough named nodes are known to do without it.
+    void timedOut(InetSocketAddress address, long sent) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = byAddress.get(address);
+            if (entry == null || entry.lastSeen - sent > 0 || ++entry.failures < FAILURES_BEFORE_EVICT) {
+                return;
+            }
+            if (entry.node == null) {
+                if (byName.size() >= NearestSearch.RESULTS) {
+                    seeds.remove(address);
+                    byAddress.remove(address);
+                }
+                return;
+            }
+            Bucket bucket = bucket(self.distance(entry.node.hashID));
+            Entry replacement = bucket.replacements.pollLast();
+            if (replacement != null) {
+                bucket.members.remove(entry);
+                byName.remove(entry.node.name);
+                byAddress.remove(address);
+                bucket.members.add(replacement);
+                index(replacement);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // How long ago anything was last received from an address, or
+    // Long.MAX_VALUE if it isn't in the table or has never been heard from
+    long heardAgoMs(InetSocketAddress address) {
+        lock.readLock().lock();
+        try {
+            Entry entry = byAddress.get(address);
+            if (entry == null || !entry.heard) {
+                return Long.MAX_VALUE;
+            }
+            return (System.nanoTime() - entry.lastSeen) / 1_000_000;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    NodeAddress get(String name) {
+        lock.readLock().lock();
+        try {
+            Entry entry = byName.get(name);
+            return entry == null ? null : entry.node;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The known nodes closest to target, closest first
+    List<NodeAddress> closest(HashID target, int limit) {
+        List<NodeAddress> closest = nodes();
+        closest.sort((a, b) -> target.compareDistance(a.hashID, b.hashID));
+        return closest.size() > limit ? new ArrayList<>(closest.subList(0, limit)) : closest;
+    }
+
+    // How many known nodes are closer to target than hashID, counting no further than max
+    int countCloser(HashID target, HashID hashID, int max) {
+        lock.readLock().lock();
+        try {
+            int closer = 0;
+            for (Entry entry : byName.values()) {
+                if (target.compareDistance(entry.node.hashID, hashID) < 0 && ++closer >= max) {
+                    break;
+                }
+            }
+            return closer;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<NodeAddress> nodes() {
+        lock.readLock().lock();
+        try {
+            List<NodeAddress> nodes = new ArrayList<>(byName.size());
+            for (Entry entry : byName.values()) {
+                nodes.add(entry.node);
+            }
+            return nodes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<InetSocketAddress> seeds() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(seeds.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Every address in the table, named nodes first
+    List<InetSocketAddress> addresses() {
+        lock.readLock().lock();
+        try {
+            List<InetSocketAddress> addresses = new ArrayList<>(byAddress.size());
+            for (Entry entry : byName.values()) {
+                addresses.add(entry.node.address);
+            }
+            addresses.addAll(seeds.keySet());
+            return addresses;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void clearSeeds() {
+        lock.writeLock().lock();
+        try {
+            for (InetSocketAddress address : seeds.keySet()) {
+                byAddress.remove(address);
+            }
+            seeds.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return byName.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void index(Entry entry) {
+        byName.put(entry.node.name, entry);
+        byAddress.put(entry.node.address, entry);
+    }
+
+    private Bucket bucket(int distance) {
+        Bucket bucket = buckets[distance];
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets[distance] = bucket;
+        }
+        return bucket;
+    }
+
+    private static final class Entry {
+        NodeAddress node;
+        // Only set for seeds
+        final InetSocketAddress seedAddress;
+        // When it was added, until something is heard from it
+        volatile long lastSeen = System.nanoTime();
+        volatile boolean heard;
+        volatile int failures;
+
+        Entry(NodeAddress node) {
+            this.node = node;
+            this.seedAddress = null;
+        }
+
+        Entry(InetSocketAddress seedAddress) {
+            this.seedAddress = seedAddress;
+        }
+
+        InetSocketAddress address() {
+            return node == null ? seedAddress : node.address;
+        }
+    }
+
+    // Members are in the order they were added, so the longest known come first.
+    // Replacements are the most recently heard of last.
+    private static final class Bucket {
+        final List<Entry> members = new ArrayList<>(BUCKET_SIZE);
+        final ArrayDeque<Entry> replacements = new ArrayDeque<>(BUCKET_SIZE);
+
+        void addReplacement(Entry entry) {
+            replacements.removeIf(e -> e.node.name.equals(entry.node.name));
+            if (replacements.size() >= BUCKET_SIZE) {
+                replacements.pollFirst();
+            }
+            replacements.addLast(entry);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A network in memory, for running thousands of nodes in one JVM without any
+// sockets.  Each node gets a made up address, 10.x.y.z:20110, and datagrams
+// between them are held back for the configured latency plus a random amount of
+// jitter, or dropped, before being handed to the destination node.  A fraction
+// of them can be held back for longer still, so they arrive after datagrams
+// that were sent later.
+//
+// The random choices all come from one generator with a fixed seed, so a run
+// that sends the same datagrams in the same order sees the same losses and
+// delays.  Nodes are shared between a few delivery threads, each node always on
+// the same one, as a node may only have one thread delivering to it at a time.
+class SimulatedNetwork {
+
+    static final int PORT = 20110;
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double lossRate;
+    private final double reorderRate;
+    private final Random random;
+
+    private final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    // In the order they were started
+    private final List<Endpoint> started = new ArrayList<>();
+    private final Deliverer[] deliverers;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private int nextHost = 1;
+
+    SimulatedNetwork(Settings settings) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(settings.latencyMicros);
+        this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(settings.jitterMicros);
+        this.lossRate = settings.lossRate;
+        this.reorderRate = settings.reorderRate;
+        this.random = new Random(settings.seed);
+        this.deliverers = new Deliverer[Math.max(1, settings.threads)];
+        for (int i = 0; i < deliverers.length; i++) {
+            deliverers[i] = new Deliverer(i);
+        }
+    }
+
+    // What the network is like.  Times are one way, in microseconds.
+    static class Settings {
+        long latencyMicros = 200;
+        long jitterMicros = 100;
+        double lossRate;
+        double reorderRate;
+        long seed = 23;
+        int threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    // Creates a node on the next free address
+    synchronized Node startNode(String nodeName) throws Exception {
+        int host = nextHost++;
+        InetAddress ip = InetAddress.getByAddress(new byte[] {10, (byte) (host >>> 16), (byte) (host >>> 8), (byte) host});
+        InetSocketAddress address = new InetSocketAddress(ip, PORT);
+        Node node = new Node();
+        node.setNodeName(nodeName);
+        Endpoint endpoint = new Endpoint(address, node, deliverers[host % deliverers.length]);
+        endpoints.put(address, endpoint);
+        started.add(endpoint);
+        node.attach(endpoint);
+        return node;
+    }
+
+    // The nodes in the order they were started
+    synchronized List<Node> nodes() {
+        List<Node> nodes = new ArrayList<>(started.size());
+        for (Endpoint endpoint : started) {
+            nodes.add(endpoint.node);
+        }
+        return nodes;
+    }
+
+    // The "ip:port" of the i'th node started, as it would appear in an address key/value pair
+    synchronized String addressOf(int i) {
+        InetSocketAddress address = started.get(i).address;
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    long sentCount() {
+        return sent.get();
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    synchronized void shutdown() {
+        for (Endpoint endpoint : started) {
+            endpoint.node.shutdown();
+        }
+        for (Deliverer deliverer : deliverers) {
+            deliverer.thread.interrupt();
+        }
+    }
+
+    private void send(Endpoint from, ByteBuffer data, InetSocketAddress destination) {
+        sent.incrementAndGet();
+        Endpoint to = endpoints.get(destination);
+        long delay;
+        synchronized (random) {
+            if (to == null || random.nextDouble() < lossRate) {
+                delay = -1;
+            } else {
+                delay = latencyNanos + (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+                if (reorderRate > 0 && random.nextDouble() < reorderRate) {
+                    // Long enough to arrive after others sent a little later
+                    delay += latencyNanos + jitterNanos;
+                }
+            }
+        }
+        if (delay < 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        ByteBuffer copy = from.acquire();
+        copy.put(data.duplicate()).flip();
+        to.deliverer.queue.add(new Datagram(to, from.address, copy, System.nanoTime() + delay));
+    }
+
+    // A node's place on the network, and the transport it sends through
+    private final class Endpoint implements Transport {
+        private final InetSocketAddress address;
+        private final Node node;
+        private final Deliverer deliverer;
+        private volatile boolean open = true;
+
+        Endpoint(InetSocketAddress address, Node node, Deliverer deliverer) {
+            this.address = address;
+            this.node = node;
+            this.deliverer = deliverer;
+        }
+
+        @Override
+        public ByteBuffer acquire() {
+            return BufferPool.shared().acquire();
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            BufferPool.shared().release(buffer);
+        }
+
+        @Override
+        public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+            if (!open) {
+                throw new IOException("Closed");
+            }
+            SimulatedNetwork.this.send(this, data, destination);
+        }
+
+        @Override
+        public int localPort() {
+            return address.getPort();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            endpoints.remove(address, this);
+        }
+    }
+
+    private static final class Datagram implements Delayed {
+        final Endpoint to;
+        final InetSocketAddress from;
+        final ByteBuffer data;
+        final long due;
+
+        Datagram(Endpoint to, InetSocketAddress from, ByteBuffer data, long due) {
+            this.to = to;
+            this.from = from;
+            this.data = data;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Datagram) other).due);
+        }
+    }
+
+    // Hands datagrams to their nodes once they are due
+    private static final class Deliverer implements Runnable {
+        final DelayQueue<Datagram> queue = new DelayQueue<>();
+        final Thread thread;
+
+        Deliverer(int index) {
+            thread = new Thread(this, "CRN-simulated-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Datagram datagram;
+                try {
+                    datagram = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!datagram.to.open || !datagram.to.node.deliver(datagram.data, datagram.from)) {
+                    datagram.to.release(datagram.data);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A store that keeps a CountingBloomFilter of its keys up to date as keys are added
+// and dropped, for KeySummaries to send to other nodes.  Values don't affect it.
+// added is run after each new key, so the change can be sent promptly.
+//
+// The filter is rebuilt at a new size when the number of keys calls for it.  Changes to
+// the keys hold the read side of resizing and a rebuild the write side, as a key taken out
+// part way through a rebuild could otherwise clear positions another key needs.
+class SummarizedStore implements KeyValueStore {
+
+    private final KeyValueStore store;
+    private final CountingBloomFilter filter;
+    private final Runnable added;
+    private final ReentrantReadWriteLock resizing = new ReentrantReadWriteLock();
+    // The keys held, counted here as the store's size can be slow to add up
+    private final AtomicInteger keys;
+
+    // Sizes filter for the keys store already holds and adds them to it
+    SummarizedStore(KeyValueStore store, CountingBloomFilter filter, Runnable added) {
+        this.store = store;
+        this.filter = filter;
+        this.added = added;
+        this.keys = new AtomicInteger(store.size());
+        filter.rebuild(CountingBloomFilter.bitsFor(keys.get()), store);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public int flags(String key) {
+        return store.flags(key);
+    }
+
+    @Override
+    public String put(String key, String value, int flags) {
+        String previous;
+        resizing.readLock().lock();
+        try {
+            previous = store.put(key, value, flags);
+            if (previous == null) {
+                filter.add(key);
+            }
+        } finally {
+            resizing.readLock().unlock();
+        }
+        if (previous == null) {
+            keyAdded();
+        }
+        return previous;
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value, int flags) {
+        String existing;
+        resizing.readLock().lock();
+        try {
+            existing = store.putIfAbsent(key, value, flags);
+            if (existing == null) {
+                filter.add(key);
+            }
+        } finally {
+            resizing.readLock().unlock();
+        }
+        if (existing == null) {
+            keyAdded();
+        }
+        return existing;
+    }
+
+    @Override
+    public boolean replace(String key, String expected, String value, int flags) {
+        return store.replace(key, expected, value, flags);
+    }
+
+    // If the key is put back while this runs it may be left counted twice, which only
+    // means the filter goes on saying it may be held
+    @Override
+    public String remove(String key, int flags) {
+        String previous;
+        boolean dropped;
+        resizing.readLock().lock();
+        try {
+            previous = store.remove(key, flags);
+            dropped = previous != null && store.flags(key) == 0;
+            if (dropped) {
+                filter.remove(key);
+            }
+        } finally {
+            resizing.readLock().unlock();
+        }
+        if (dropped && filter.needsResize(keys.decrementAndGet())) {
+            resize();
+        }
+        return previous;
+    }
+
+    private void keyAdded() {
+        if (filter.needsResize(keys.incrementAndGet())) {
+            resize();
+        }
+        added.run();
+    }
+
+    // Several threads may find the filter the wrong size; the first to get here rebuilds it
+    private void resize() {
+        resizing.writeLock().lock();
+        try {
+            if (filter.needsResize(keys.get())) {
+                filter.rebuild(CountingBloomFilter.bitsFor(keys.get()), store);
+            }
+        } finally {
+            resizing.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        store.forEach(visitor);
+    }
+
+    @Override
+    public void forEachWithin(HashID target, int maxDistance, Visitor visitor) {
+        store.forEachWithin(target, maxDistance, visitor);
+    }
+}
@@ -0,0 +1,69 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Matches responses to the requests waiting for them by transaction ID and by the
+// address the request was sent to, so a stray datagram from anywhere else that happens
+// to carry the same ID is ignored.  IDs are handed out in sequence from a random
+// starting point and an ID is never given out again while a request using it is still
+// waiting, so a late response can't be mistaken for the answer to a newer request.
+class TransactionTable<T> {
+
+    private final Map<Integer, Pending<T>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger(ThreadLocalRandom.current().nextInt(0x10000));
+
+    // Registers a new outstanding request to destination and returns its transaction ID.
+    // The future fails with a TimeoutException if no response arrives in time.
+    int register(CompletableFuture<T> future, InetSocketAddress destination, long timeoutMs) {
+        Pending<T> entry = new Pending<>(future, destination);
+        for (int attempt = 0; attempt < 0x10000; attempt++) {
+            int txid = next.getAndIncrement() & 0xFFFF;
+            // Neither byte of a transaction ID may be a space
+            if ((txid >>> 8) == ' ' || (txid & 0xFF) == ' ') {
+                continue;
+            }
+            if (pending.putIfAbsent(txid, entry) == null) {
+                future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                        .whenComplete((response, error) -> pending.remove(txid, entry));
+                return txid;
+            }
+        }
+        throw new IllegalStateException("No free transaction IDs");
+    }
+
+    // Returns false if nothing is waiting for this transaction ID from sender
+    boolean complete(int txid, InetSocketAddress sender, T response) {
+        Pending<T> entry = pending.get(txid);
+        if (entry == null || !entry.destination.equals(sender) || !pending.remove(txid, entry)) {
+            return false;
+        }
+        return entry.future.complete(response);
+    }
+
+    boolean isWaiting(int txid) {
+        return pending.containsKey(txid);
+    }
+
+    boolean isWaiting(int txid, InetSocketAddress sender) {
+        Pending<T> entry = pending.get(txid);
+        return entry != null && entry.destination.equals(sender);
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    private static final class Pending<T> {
+        final CompletableFuture<T> future;
+        final InetSocketAddress destination;
+
+        Pending(CompletableFuture<T> future, InetSocketAddress destination) {
+            this.future = future;
+            this.destination = destination;
+        }
+    }
+}
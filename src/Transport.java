@@ -0,0 +1,23 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// How a node sends datagrams.  Received datagrams are handed to Node.deliver by
+// whatever drives the transport: the node's own receive thread, a NodeHost event
+// loop, or a SimulatedNetwork.
+interface Transport {
+
+    // A buffer to encode a message into, or to receive one into
+    ByteBuffer acquire();
+
+    void release(ByteBuffer buffer);
+
+    // Sends the buffer's remaining bytes; the caller still owns the buffer
+    void send(ByteBuffer data, InetSocketAddress destination) throws IOException;
+
+    int localPort();
+
+    boolean isOpen();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Sends and receives datagrams on a DatagramChannel using pooled direct buffers,
+// so messages go between the wire and the CRN reader/writer without any copies.
+class UdpTransport implements Transport {
+
+    // Enough to ride out a burst of requests, e.g. a window of writes from every peer at once
+    private static final int RECEIVE_BUFFER_BYTES = 1 << 20;
+
+    private final DatagramChannel channel;
+    private final BufferPool pool;
+
+    UdpTransport(int port, BufferPool pool) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        this.channel.bind(new InetSocketAddress(port));
+        this.pool = pool;
+    }
+
+    @Override
+    public ByteBuffer acquire() {
+        return pool.acquire();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        channel.send(data, destination);
+    }
+
+    // Switches the channel to non-blocking mode and registers it for reads.
+    // Must be called on the thread that runs the selector.
+    SelectionKey register(Selector selector, Object attachment) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, attachment);
+    }
+
+    // Waits for a datagram, leaving it flipped in the buffer.  Once registered
+    // with a selector this returns null straight away when nothing is waiting.
+    InetSocketAddress receive(ByteBuffer into) throws IOException {
+        into.clear();
+        InetSocketAddress sender = (InetSocketAddress) channel.receive(into);
+        into.flip();
+        return sender;
+    }
+
+    @Override
+    public int localPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}